@@ -0,0 +1,68 @@
+package com.example.android.ittiadb.phonebook;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sort keys and sections of names, as PhoneBookDbAdapter writes them for
+ * each insert and rename and ContactListAdapter computes them while
+ * paging. Unlike the store benchmarks, this measures the code that the
+ * application runs. It is in the application's package because SortKeys
+ * is package-private.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SortKeysBenchmark {
+    /** Number of names that operations cycle through. */
+    static final int NAMES = 1024;
+
+    @State(Scope.Thread)
+    public static class Names {
+        String[] names;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            Random random = new Random(NAMES);
+            names = new String[NAMES];
+            for (int i = 0; i < NAMES; ++i) {
+                StringBuilder name = new StringBuilder(16);
+                name.append((char) ('A' + random.nextInt(26)));
+                for (int j = random.nextInt(6); j < 8; ++j) {
+                    name.append((char) ('a' + random.nextInt(26)));
+                }
+                names[i] = name.toString();
+            }
+        }
+
+        String next() {
+            next = (next + 1) % NAMES;
+            return names[next];
+        }
+    }
+
+    @Benchmark
+    public String getKey(Names names) {
+        return SortKeys.get(names.next());
+    }
+
+    @Benchmark
+    public String getSection(Names names) {
+        return SortKeys.getSection(names.next());
+    }
+}
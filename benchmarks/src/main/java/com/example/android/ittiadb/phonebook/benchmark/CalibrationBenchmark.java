@@ -0,0 +1,57 @@
+package com.example.android.ittiadb.phonebook.benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A fixed amount of work that does not depend on the code under test,
+ * measured in the same run as the other benchmarks. RegressionGate divides
+ * their times by its time, so that the baseline holds times relative to
+ * the speed of the host rather than nanoseconds of one machine.
+ *
+ * The work, sorting a copy of NAMES random names, compares strings and
+ * allocates like the benchmarks it calibrates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CalibrationBenchmark {
+    /** Number of names sorted. */
+    static final int NAMES = 1000;
+
+    @State(Scope.Benchmark)
+    public static class Names {
+        String[] names;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            Random random = new Random(NAMES);
+            names = new String[NAMES];
+            for (int i = 0; i < NAMES; ++i) {
+                names[i] = StoreState.randomName(random);
+            }
+        }
+    }
+
+    @Benchmark
+    public String[] sortNames(Names names) {
+        String[] sorted = names.names.clone();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+}
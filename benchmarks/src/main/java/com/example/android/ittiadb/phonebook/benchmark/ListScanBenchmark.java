@@ -0,0 +1,69 @@
+package com.example.android.ittiadb.phonebook.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.example.android.ittiadb.phonebook.ContactStore;
+
+/**
+ * Scans of the contact list in key order, as the list adapter pages it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListScanBenchmark {
+    /** Rows in a page of the list, as in ContactListAdapter. */
+    static final int PAGE_SIZE = 100;
+
+    /** Remembers the key of the last row visited. */
+    @State(Scope.Thread)
+    public static class Cursor implements ContactStore.RowVisitor {
+        String name;
+        long rowId;
+        Blackhole blackhole;
+
+        @Override
+        public void onRow(long rowId, String name, String pictureKey) {
+            this.rowId = rowId;
+            this.name = name;
+            blackhole.consume(pictureKey);
+        }
+    }
+
+    /** Read the page after the previous one, starting over at the end. */
+    @Benchmark
+    public int scanPage(StoreState state, Cursor cursor, Blackhole blackhole) {
+        cursor.blackhole = blackhole;
+        final int rows = state.store.scanContactsAfter(cursor.name, cursor.rowId, PAGE_SIZE, cursor);
+        if (rows < PAGE_SIZE) {
+            cursor.name = null;
+        }
+        return rows;
+    }
+
+    /** Read the whole list a page at a time. */
+    @Benchmark
+    public int scanAll(StoreState state, Cursor cursor, Blackhole blackhole) {
+        cursor.blackhole = blackhole;
+        cursor.name = null;
+        int total = 0;
+        int rows;
+        do {
+            rows = state.store.scanContactsAfter(cursor.name, cursor.rowId, PAGE_SIZE, cursor);
+            total += rows;
+        } while (rows == PAGE_SIZE);
+        return total;
+    }
+}
@@ -0,0 +1,28 @@
+package com.example.android.ittiadb.phonebook.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.example.android.ittiadb.phonebook.ContactStore;
+
+/**
+ * Reads of single contacts by row ID, as ContactEdit opens them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmark {
+    @Benchmark
+    public ContactStore.Contact readContact(StoreState state) {
+        return state.store.readContact(state.rowIds[state.next()]);
+    }
+}
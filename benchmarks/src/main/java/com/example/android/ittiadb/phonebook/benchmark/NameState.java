@@ -0,0 +1,35 @@
+package com.example.android.ittiadb.phonebook.benchmark;
+
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Two random names for each contact that operations cycle through, used
+ * in turn so that every rename changes the name.
+ */
+@State(Scope.Benchmark)
+public class NameState {
+    private String[][] mNames;
+    private boolean[] mSecond;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(StoreState.ROW_IDS);
+        mNames = new String[StoreState.ROW_IDS][2];
+        mSecond = new boolean[StoreState.ROW_IDS];
+        for (String[] names : mNames) {
+            names[0] = StoreState.randomName(random);
+            names[1] = StoreState.randomName(random);
+        }
+    }
+
+    /** Returns the name to give the contact at index i of StoreState.rowIds. */
+    public String next(int i) {
+        mSecond[i] = !mSecond[i];
+        return mNames[i][mSecond[i] ? 1 : 0];
+    }
+}
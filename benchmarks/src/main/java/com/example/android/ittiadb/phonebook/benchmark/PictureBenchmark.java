@@ -0,0 +1,41 @@
+package com.example.android.ittiadb.phonebook.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.example.android.ittiadb.phonebook.ContactStore;
+
+/**
+ * Picture writes. Every picture written is already stored for other
+ * contacts, as with the stock pictures, so each write finds the stored
+ * copy and only moves a reference.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PictureBenchmark {
+    @Benchmark
+    public boolean setPicture(StoreState state) {
+        final int i = state.next();
+        return state.store.updateContact(state.rowIds[i], ContactStore.FIELD_PICTURE,
+                null, null, state.pictures[i % StoreState.STOCK_PICTURES]);
+    }
+
+    /** Insert a contact with a picture and delete it again. */
+    @Benchmark
+    public boolean createAndDelete(StoreState state) {
+        final int i = state.next();
+        final long rowId = state.store.createContact("~bench", null,
+                state.pictures[i % StoreState.STOCK_PICTURES]);
+        return state.store.deleteContact(rowId);
+    }
+}
@@ -0,0 +1,200 @@
+package com.example.android.ittiadb.phonebook.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs every benchmark of the application's packages with the GC profiler
+ * and fails if one is slower, or allocates more per operation, than its
+ * baseline.
+ *
+ * Only SortKeysBenchmark measures code that the application runs. The
+ * store benchmarks measure MemoryContactStore, a reference model of the
+ * ITTIA DB store, which needs Android and the native library and cannot
+ * run on a desktop JVM. They catch regressions in ContactStore callers
+ * and in the model, not in PhoneBookDbAdapter, which is measured on a
+ * device by SyncBenchmark.
+ *
+ * The baseline is a properties file with two entries for each benchmark
+ * and size, such as "ListScanBenchmark.scanPage.size_1000.relative" and
+ * "...alloc". The relative entry is the time per operation divided by
+ * that of CalibrationBenchmark in the same run, so that the baseline
+ * carries over to hosts of another speed. The alloc entry is in bytes per
+ * operation, which does not depend on the host. A benchmark fails the
+ * gate if its relative time exceeds the baseline by more than
+ * TIME_TOLERANCE, or its allocation by more than ALLOC_TOLERANCE plus
+ * ALLOC_SLACK_BYTES. Times vary between runs on a busy host, so a time
+ * fails only if it is over the limit by more than the measurement error
+ * that JMH reports, that is, if the smallest relative time consistent
+ * with the measurements of both benchmarks is over it.
+ *
+ * System properties:
+ * gate.baseline is the path of the baseline file, baseline.properties by
+ * default. gate.update, if true, writes the results to the baseline file
+ * instead of checking them. Benchmarks missing from the baseline are
+ * reported and do not fail the gate.
+ */
+public class RegressionGate {
+    /** Share by which relative time per operation may exceed the baseline. */
+    static final double TIME_TOLERANCE = 0.50;
+
+    /** Share by which allocation per operation may exceed the baseline. */
+    static final double ALLOC_TOLERANCE = 0.10;
+
+    /**
+     * Bytes per operation allowed above the baseline regardless of its size.
+     * Whether the JIT removes a small temporary object, such as a boxed key
+     * or a ByteBuffer wrapper, by escape analysis differs between runs, and
+     * changes the allocation of short operations by a few dozen bytes.
+     */
+    static final double ALLOC_SLACK_BYTES = 64;
+
+    private static final String ALLOC_RESULT = "gc.alloc.rate.norm";
+
+    /** Package whose benchmarks are run, with its subpackages. */
+    private static final String APP_PACKAGE = "com.example.android.ittiadb.phonebook";
+
+    private static final String CALIBRATION = "CalibrationBenchmark.sortNames";
+
+    public static void main(String[] args) throws IOException, RunnerException {
+        final File baselineFile = new File(System.getProperty("gate.baseline", "baseline.properties"));
+        final boolean update = Boolean.parseBoolean(System.getProperty("gate.update", "false"));
+
+        Options options = new OptionsBuilder()
+                .include(Pattern.quote(APP_PACKAGE) + "\\..*Benchmark\\.")
+                .addProfiler(GCProfiler.class)
+                .build();
+        Collection<RunResult> results = new Runner(options).run();
+
+        double calibration = 0;
+        double calibrationError = 0;
+        for (RunResult result : results) {
+            if (getKey(result).equals(CALIBRATION)) {
+                calibration = result.getPrimaryResult().getScore();
+                calibrationError = getError(result.getPrimaryResult());
+            }
+        }
+        if (calibration <= 0) {
+            throw new IllegalStateException(CALIBRATION + " did not run");
+        }
+
+        Map<String, Double> measured = new TreeMap<String, Double>();
+        // Smallest relative times consistent with the measurement error.
+        Map<String, Double> lowest = new TreeMap<String, Double>();
+        for (RunResult result : results) {
+            final String key = getKey(result);
+            if (key.equals(CALIBRATION)) {
+                continue;
+            }
+            final Result time = result.getPrimaryResult();
+            measured.put(key + ".relative", time.getScore() / calibration);
+            lowest.put(key + ".relative",
+                    Math.max(0, time.getScore() - getError(time)) / (calibration + calibrationError));
+            for (Map.Entry<String, Result> secondary : result.getSecondaryResults().entrySet()) {
+                if (secondary.getKey().endsWith(ALLOC_RESULT)) {
+                    measured.put(key + ".alloc", secondary.getValue().getScore());
+                }
+            }
+        }
+
+        if (update) {
+            // Written in key order, so that changes to the baseline diff well.
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(baselineFile), "ISO-8859-1"));
+            try {
+                out.println("# Benchmark baseline, written by RegressionGate with -Dgate.update=true");
+                for (Map.Entry<String, Double> entry : measured.entrySet()) {
+                    out.println(entry.getKey() + "=" + format(entry.getKey(), entry.getValue()));
+                }
+            }
+            finally {
+                out.close();
+            }
+            System.out.println("Wrote " + measured.size() + " baseline entries to " + baselineFile);
+            return;
+        }
+
+        Properties baseline = new Properties();
+        InputStream in = new FileInputStream(baselineFile);
+        try {
+            baseline.load(in);
+        }
+        finally {
+            in.close();
+        }
+
+        ArrayList<String> failures = new ArrayList<String>();
+        for (Map.Entry<String, Double> entry : measured.entrySet()) {
+            final String key = entry.getKey();
+            final double value = entry.getValue();
+            final String expected = baseline.getProperty(key);
+            if (expected == null) {
+                System.out.println("No baseline for " + key + " = " + format(key, value));
+                continue;
+            }
+
+            final double limit = key.endsWith(".alloc") ?
+                    Double.parseDouble(expected) * (1 + ALLOC_TOLERANCE) + ALLOC_SLACK_BYTES :
+                    Double.parseDouble(expected) * (1 + TIME_TOLERANCE);
+            final Double least = lowest.get(key);
+            final String line = key + " = " + format(key, value) +
+                    (least != null ? ", at least " + format(key, least) : "") +
+                    " (baseline " + expected + ", limit " + format(key, limit) + ")";
+            if ((least != null ? least : value) > limit) {
+                failures.add(line);
+            }
+            System.out.println(line);
+        }
+
+        if (!failures.isEmpty()) {
+            System.out.println();
+            System.out.println(failures.size() + " benchmark results exceed their baseline:");
+            for (String failure : failures) {
+                System.out.println("  " + failure);
+            }
+            System.exit(1);
+        }
+        System.out.println("All " + measured.size() + " benchmark results are within their baseline");
+    }
+
+    /** Returns the error of a result, or 0 if it has too few samples for one. */
+    private static double getError(Result result) {
+        final double error = result.getScoreError();
+        return Double.isNaN(error) ? 0 : error;
+    }
+
+    /** Relative times are small ratios and need more digits than bytes. */
+    private static String format(String key, double value) {
+        return String.format(Locale.ROOT, key.endsWith(".alloc") ? "%.1f" : "%.6f", value);
+    }
+
+    /** Returns "Class.method.param_value..." for a benchmark run. */
+    private static String getKey(RunResult result) {
+        final String benchmark = result.getParams().getBenchmark();
+        final String method = benchmark.substring(benchmark.lastIndexOf('.', benchmark.lastIndexOf('.') - 1) + 1);
+        StringBuilder key = new StringBuilder(method);
+        for (String param : result.getParams().getParamsKeys()) {
+            key.append('.').append(param).append('_').append(result.getParams().getParam(param));
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.android.ittiadb.phonebook.benchmark;
+
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.example.android.ittiadb.phonebook.ContactStore;
+import com.example.android.ittiadb.phonebook.MemoryContactStore;
+
+/**
+ * A contact store filled with size contacts, shared by the threads of a
+ * benchmark. The store is a MemoryContactStore, the reference model of
+ * PhoneBookDbAdapter, which cannot run on a desktop JVM.
+ *
+ * Contacts have random names, so that their row ID order differs from
+ * their name order as in a real phone book, and one of STOCK_PICTURES
+ * pictures each, like the stock pictures of ContactEdit. The sizes are
+ * those of SyncBenchmark.
+ */
+@State(Scope.Benchmark)
+public class StoreState {
+    /** Number of distinct pictures, as in PictureLoader. */
+    static final int STOCK_PICTURES = 6;
+
+    /** Size of each picture, about that of a stock picture. */
+    static final int PICTURE_BYTES = 4096;
+
+    /** Number of row IDs that operations cycle through. */
+    static final int ROW_IDS = 1024;
+
+    @Param({ "1000", "10000", "100000" })
+    public int size;
+
+    public ContactStore store;
+    public byte[][] pictures;
+    public long[] rowIds;
+
+    private int mNext;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(size);
+        pictures = new byte[STOCK_PICTURES][PICTURE_BYTES];
+        for (byte[] picture : pictures) {
+            random.nextBytes(picture);
+        }
+
+        store = new MemoryContactStore();
+        long[] created = new long[size];
+        for (int i = 0; i < size; ++i) {
+            created[i] = store.createContact(randomName(random), null, pictures[i % STOCK_PICTURES]);
+        }
+
+        // Contacts that operations leave alone, so that every picture stays
+        // stored however often the others change theirs. Otherwise the
+        // allocation of picture writes would depend on how long they ran.
+        for (byte[] picture : pictures) {
+            store.createContact(randomName(random), null, picture);
+        }
+
+        rowIds = new long[ROW_IDS];
+        for (int i = 0; i < ROW_IDS; ++i) {
+            rowIds[i] = created[random.nextInt(size)];
+        }
+    }
+
+    /** Returns the index in rowIds of the next contact to operate on. */
+    public int next() {
+        mNext = (mNext + 1) % ROW_IDS;
+        return mNext;
+    }
+
+    static String randomName(Random random) {
+        StringBuilder name = new StringBuilder(16);
+        name.append((char) ('A' + random.nextInt(26)));
+        for (int i = random.nextInt(6); i < 8; ++i) {
+            name.append((char) ('a' + random.nextInt(26)));
+        }
+        name.append(' ').append((char) ('A' + random.nextInt(26)));
+        for (int i = random.nextInt(4); i < 6; ++i) {
+            name.append((char) ('a' + random.nextInt(26)));
+        }
+        return name.toString();
+    }
+}
@@ -0,0 +1,39 @@
+package com.example.android.ittiadb.phonebook.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.example.android.ittiadb.phonebook.ContactStore;
+
+/**
+ * Updates of single contacts, as ContactEdit saves them: a rename, which
+ * moves the contact in the name index, and a ring tone change, which does
+ * not.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UpdateBenchmark {
+    @Benchmark
+    public boolean rename(StoreState state, NameState names) {
+        final int i = state.next();
+        return state.store.updateContact(state.rowIds[i], ContactStore.FIELD_NAME,
+                names.next(i), null, null);
+    }
+
+    @Benchmark
+    public boolean setRingId(StoreState state) {
+        final int i = state.next();
+        return state.store.updateContact(state.rowIds[i], ContactStore.FIELD_RING_ID,
+                null, Long.valueOf(i), null);
+    }
+}
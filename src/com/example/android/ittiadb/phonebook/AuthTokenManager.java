@@ -0,0 +1,309 @@
+package com.example.android.ittiadb.phonebook;
+
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.accounts.NetworkErrorException;
+import android.content.Context;
+import android.database.ittiadb.IttiaDbDatabase;
+import android.database.ittiadb.IttiaDbException;
+import android.database.ittiadb.IttiaDbSyncAdapter;
+import android.os.Bundle;
+import android.os.Process;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * Obtains replication auth tokens for SyncAuthenticator.
+ *
+ * Tokens are stored in the account with the time they were issued. A
+ * token younger than TOKEN_LIFETIME_MILLIS is returned without contacting
+ * the peer. The peer does not report how long its tokens last, so the
+ * lifetime is a fixed setting.
+ *
+ * Tokens are replaced before they expire. Whenever a token is issued, a
+ * refresh is scheduled for REFRESH_MARGIN_MILLIS before the end of its
+ * lifetime, so that a sync started at any time finds a fresh token. The
+ * schedule is kept in the process only; after a restart, the first
+ * getToken() schedules the refresh again, or refreshes in the background
+ * if the token is already within the margin. A refresh that fails is
+ * retried every RETRY_DELAY_MILLIS.
+ *
+ * If a token cannot be obtained, because the peer cannot be reached, the
+ * stored token is returned even if it has expired, and the peer decides
+ * whether it is still accepted. Only an account without credentials makes
+ * getToken() return null, which prompts for them.
+ *
+ * At most one request per account is in flight. Callers that need a token
+ * while one is being requested wait for that request instead of starting
+ * their own.
+ */
+public class AuthTokenManager {
+    private static final String TAG = "AuthTokenManager";
+
+    /** Account user data key holding the time the token was issued. */
+    public static final String KEY_TOKEN_ISSUED = "token_issued";
+
+    /** Age after which a token is replaced before it is returned. */
+    public static final long TOKEN_LIFETIME_MILLIS = 60 * 60 * 1000;
+
+    /** A token is refreshed this long before the end of its lifetime. */
+    public static final long REFRESH_MARGIN_MILLIS = 10 * 60 * 1000;
+
+    /** Time after a failed refresh before it is tried again. */
+    public static final long RETRY_DELAY_MILLIS = 5 * 60 * 1000;
+
+    private static AuthTokenManager sInstance;
+
+    private final AccountManager mAccountManager;
+    private final ExecutorService mExecutor;
+    private final ScheduledExecutorService mScheduler;
+    private final HashMap<Account, FutureTask<String>> mRequests = new HashMap<Account, FutureTask<String>>();
+    // The scheduled refresh of each account. Guarded by mRequests.
+    private final HashMap<Account, ScheduledFuture<?>> mRefreshes = new HashMap<Account, ScheduledFuture<?>>();
+
+    public static synchronized AuthTokenManager get(Context context) {
+        if (sInstance == null) {
+            sInstance = new AuthTokenManager(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private AuthTokenManager(Context context) {
+        mAccountManager = AccountManager.get(context);
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, TAG);
+            }
+        };
+        mExecutor = Executors.newCachedThreadPool(threadFactory);
+        mScheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+    }
+
+    /**
+     * Returns a token for the account, requesting one from the peer only if
+     * the stored token is missing or expired. If the request fails, returns
+     * the stored token even if it has expired, or throws
+     * NetworkErrorException if there is none. Returns null if the account
+     * has no credentials to request a token with.
+     */
+    public String getToken(Account account, String authTokenType, IttiaDbDatabase database)
+            throws NetworkErrorException {
+        final String authToken = mAccountManager.peekAuthToken(account, authTokenType);
+        if (!TextUtils.isEmpty(authToken)) {
+            final long age = getTokenAge(account);
+            if (age < TOKEN_LIFETIME_MILLIS) {
+                final long refreshDelay = TOKEN_LIFETIME_MILLIS - REFRESH_MARGIN_MILLIS - age;
+                if (refreshDelay > 0) {
+                    // Only schedules a refresh after a restart.
+                    scheduleRefresh(account, authTokenType, refreshDelay, false);
+                }
+                else {
+                    FutureTask<String> request = startRequest(account, authTokenType,
+                            database.getReplicationAddress());
+                    if (request != null) {
+                        mExecutor.execute(request);
+                    }
+                }
+                return authToken;
+            }
+        }
+
+        // Run a new request on this thread, or wait for the one in flight.
+        try {
+            FutureTask<String> request = startRequest(account, authTokenType,
+                    database.getReplicationAddress());
+            if (request != null) {
+                request.run();
+            }
+            else {
+                synchronized (mRequests) {
+                    request = mRequests.get(account);
+                }
+                if (request == null) {
+                    // The request in flight has just finished.
+                    return mAccountManager.peekAuthToken(account, authTokenType);
+                }
+            }
+            return getResult(request);
+        }
+        catch (NetworkErrorException ex) {
+            if (TextUtils.isEmpty(authToken)) {
+                throw ex;
+            }
+            // The failed request has scheduled a retry.
+            Log.w(TAG, "Using an expired token for " + account.name);
+            return authToken;
+        }
+    }
+
+    /**
+     * Schedule a refresh of the account's token after delayMillis,
+     * replacing any refresh scheduled already if replace is true.
+     */
+    private void scheduleRefresh(final Account account, final String authTokenType, long delayMillis,
+            boolean replace) {
+        synchronized (mRequests) {
+            ScheduledFuture<?> refresh = mRefreshes.get(account);
+            if (refresh != null) {
+                if (!replace) {
+                    return;
+                }
+                refresh.cancel(false);
+            }
+            mRefreshes.put(account, mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    refresh(account, authTokenType);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    /** Request a new token in the background. Runs on mScheduler. */
+    private void refresh(Account account, String authTokenType) {
+        synchronized (mRequests) {
+            mRefreshes.remove(account);
+        }
+
+        boolean exists = false;
+        for (Account a : mAccountManager.getAccountsByType(account.type)) {
+            exists |= a.equals(account);
+        }
+        // The replication address was saved with the current token.
+        final String replicationAddress = mAccountManager.getUserData(account,
+                IttiaDbSyncAdapter.KEY_REPLICATION_ADDRESS);
+        if (!exists || replicationAddress == null) {
+            return;
+        }
+
+        FutureTask<String> request = startRequest(account, authTokenType, Integer.parseInt(replicationAddress));
+        if (request != null) {
+            mExecutor.execute(request);
+        }
+    }
+
+    private long getTokenAge(Account account) {
+        final String issued = mAccountManager.getUserData(account, KEY_TOKEN_ISSUED);
+        if (issued == null) {
+            // A token stored before issue times were recorded. Use it, but
+            // replace it soon.
+            return TOKEN_LIFETIME_MILLIS - REFRESH_MARGIN_MILLIS;
+        }
+        return System.currentTimeMillis() - Long.parseLong(issued);
+    }
+
+    /**
+     * Create a request for a new token and mark it in flight. Returns null
+     * if a request for the account is already in flight. The caller must
+     * run the returned request.
+     */
+    private FutureTask<String> startRequest(final Account account, final String authTokenType,
+            final int replicationAddress) {
+        synchronized (mRequests) {
+            if (mRequests.containsKey(account)) {
+                return null;
+            }
+
+            FutureTask<String> request = new FutureTask<String>(new Callable<String>() {
+                @Override
+                public String call() throws NetworkErrorException {
+                    return requestToken(account, authTokenType, replicationAddress);
+                }
+            }) {
+                @Override
+                protected void done() {
+                    synchronized (mRequests) {
+                        mRequests.remove(account);
+                    }
+                }
+            };
+            mRequests.put(account, request);
+            return request;
+        }
+    }
+
+    /**
+     * Request a token from the peer and store it, scheduling its refresh.
+     * Returns null if the account has no credentials. If the request
+     * fails, schedules a retry and throws NetworkErrorException.
+     */
+    private String requestToken(Account account, String authTokenType, int replicationAddress)
+            throws NetworkErrorException {
+        final String password = mAccountManager.getPassword(account);
+        final String userName = mAccountManager.getUserData(account, IttiaDbSyncAdapter.KEY_USER_NAME);
+        final String uri = mAccountManager.getUserData(account, IttiaDbSyncAdapter.KEY_PEER_URI);
+        if (password == null || userName == null || uri == null) {
+            return null;
+        }
+
+        final long accessStart = SystemClock.elapsedRealtime();
+        try {
+            Bundle result = IttiaDbSyncAdapter.requestAccess(uri, userName, password, replicationAddress);
+
+            // Update authToken and the sync addresses.
+            final String authToken = result.getString(AccountManager.KEY_AUTHTOKEN);
+            final int assignedAddress = result.getInt(IttiaDbSyncAdapter.KEY_REPLICATION_ADDRESS, IttiaDbDatabase.REP_ADDRESS_NONE);
+            final int peerAddress = result.getInt(IttiaDbSyncAdapter.KEY_PEER_ADDRESS, IttiaDbDatabase.REP_ADDRESS_NONE);
+
+            mAccountManager.setAuthToken(account, authTokenType, authToken);
+            mAccountManager.setUserData(account, KEY_TOKEN_ISSUED, Long.toString(System.currentTimeMillis()));
+            mAccountManager.setUserData(account, IttiaDbSyncAdapter.KEY_REPLICATION_ADDRESS, Integer.toString(assignedAddress));
+            mAccountManager.setUserData(account, IttiaDbSyncAdapter.KEY_PEER_ADDRESS, Integer.toString(peerAddress));
+            scheduleRefresh(account, authTokenType, TOKEN_LIFETIME_MILLIS - REFRESH_MARGIN_MILLIS, true);
+            return authToken;
+        }
+        catch (IttiaDbException ex) {
+            Log.w(TAG, "Access request failed", ex);
+            scheduleRefresh(account, authTokenType, RETRY_DELAY_MILLIS, true);
+            throw new NetworkErrorException("Access request failed", ex);
+        }
+        finally {
+            SyncMetrics.addAccessTime(account, SystemClock.elapsedRealtime() - accessStart);
+        }
+    }
+
+    private static String getResult(FutureTask<String> request) throws NetworkErrorException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return request.get();
+                }
+                catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+                catch (ExecutionException ex) {
+                    if (ex.getCause() instanceof NetworkErrorException) {
+                        throw (NetworkErrorException) ex.getCause();
+                    }
+                    Log.e(TAG, "Access request failed", ex.getCause());
+                    throw new NetworkErrorException("Access request failed", ex.getCause());
+                }
+            }
+        }
+        finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.example.android.ittiadb.phonebook;
+
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Reports which contacts were inserted, updated or deleted.
+ *
+ * PhoneBookDbAdapter publishes a Changes object after each local write, and
+ * PhoneBookSyncAdapter publishes one after each sync run. Listeners are
+ * called on the main thread, in the order the changes were published.
+ */
+public class ContactChangeFeed {
+    /** A changed contact, identified by its list key. */
+    public static class Row {
+        public final long id;
+        public final String name;
+        /** Name before an update, or null if it did not change. */
+        public final String previousName;
+
+        public Row(long id, String name, String previousName) {
+            this.id = id;
+            this.name = name;
+            this.previousName = previousName;
+        }
+    }
+
+    /** A set of row-level changes to the contact table. */
+    public static class Changes {
+        public final ArrayList<Row> inserted = new ArrayList<Row>();
+        public final ArrayList<Row> updated = new ArrayList<Row>();
+        public final ArrayList<Row> deleted = new ArrayList<Row>();
+
+        /** Rows not listed in updated may also have been updated. */
+        public boolean otherRowsUpdated;
+
+        /** Rows not listed in deleted may also have been deleted. */
+        public boolean otherRowsDeleted;
+
+        /** Rows not listed may have moved to another place in the list. */
+        public boolean orderChanged;
+
+        /** The changes were made by a sync run rather than a local write. */
+        public boolean fromSync;
+
+        public boolean isEmpty() {
+            return inserted.isEmpty() && updated.isEmpty() && deleted.isEmpty() &&
+                    !otherRowsUpdated && !otherRowsDeleted && !orderChanged;
+        }
+    }
+
+    public interface Listener {
+        void onContactsChanged(Changes changes);
+    }
+
+    private static final ContactChangeFeed sInstance = new ContactChangeFeed();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+
+    public static ContactChangeFeed get() {
+        return sInstance;
+    }
+
+    private ContactChangeFeed() {
+    }
+
+    public void registerListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void unregisterListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Deliver changes to all registered listeners. May be called on any
+     * thread, after the changes are committed.
+     */
+    public void publish(final Changes changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : mListeners) {
+                    listener.onContactsChanged(changes);
+                }
+            }
+        });
+    }
+}
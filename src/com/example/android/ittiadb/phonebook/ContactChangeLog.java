@@ -0,0 +1,99 @@
+package com.example.android.ittiadb.phonebook;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.ittiadb.IttiaDbDatabase;
+
+/**
+ * A replicated log of the updates and deletes of contacts.
+ *
+ * Replication does not tell which rows it wrote. Inserted contacts are
+ * found by row ID, but finding the contacts that a peer renamed or deleted
+ * would mean comparing every contact with its sort key. Instead, each
+ * update or delete of a contact that has a replication key (contact_id)
+ * also inserts a row into the contact_change table, with the key and the
+ * contact's name after the change. The table is replicated in and out like
+ * the contact table. Change rows that a sync run brings in get local row
+ * IDs above the largest one before the run, so PhoneBookSyncAdapter finds
+ * them with one range query, and only the contacts they name are read.
+ * The sort key of a contact deleted by a peer is found by the name in its
+ * change row.
+ *
+ * A contact without a replication key has never been sent to a peer,
+ * which will receive it as an insert, so its changes are not logged.
+ *
+ * Change rows older than RETENTION_MS are deleted by any peer. A peer that
+ * has not synced with an account for that long may have missed some, and
+ * checks all of its sort keys in the background instead. So does a peer
+ * whose contact count after a sync does not add up, which happens when
+ * peers of version 10 and older, which write no change rows, delete
+ * contacts.
+ *
+ * All methods that write must be called inside a transaction.
+ */
+class ContactChangeLog {
+    static final String CHANGE_TABLE = "contact_change";
+
+    /** Time for which change rows are kept. */
+    static final long RETENTION_MS = 30L * 24 * 60 * 60 * 1000;
+
+    private ContactChangeLog() {
+    }
+
+    static void createTable(IttiaDbDatabase db) {
+        db.execSQL(
+            "create table contact_change (" +
+            "  _id unsigned bigint generated by default as identity primary key," +
+            "  change_id unsigned bigint null constraint change_rep_key unique," +
+            "  contact_id unsigned bigint not null," +
+            "  name nvarchar(50) not null," +
+            "  changed_at bigint not null" +
+            ")");
+        db.execSQL("create index by_change_time on contact_change (changed_at)");
+
+        // Replicate the change log in and out, alongside the contact table.
+        IttiaDbDatabase.ReplicationTable changeRep = db.getReplicationTable(CHANGE_TABLE);
+        changeRep.replicationMode = IttiaDbDatabase.ReplicationMode.INOUT;
+        changeRep.replicationIndex = "change_rep_key";
+        changeRep.apply();
+    }
+
+    /**
+     * Log an update or delete of the contact with a replication key. name
+     * is its name after an update, or before a delete.
+     */
+    static void insert(IttiaDbDatabase db, long contactId, String name) {
+        ContentValues values = new ContentValues();
+        values.put(PhoneBookDbAdapter.KEY_CONTACT_ID, contactId);
+        values.put(PhoneBookDbAdapter.KEY_NAME, name);
+        values.put("changed_at", System.currentTimeMillis());
+        db.insert(CHANGE_TABLE, null, values);
+    }
+
+    /** Returns the largest row ID of the change log, or 0 if it is empty. */
+    static long fetchMaxRowId(IttiaDbDatabase db) {
+        Cursor c = db.query(CHANGE_TABLE, new String[] { "max(_id)" }, null, null, null, null, null);
+        try {
+            return (c.moveToFirst() && !c.isNull(0)) ? c.getLong(0) : 0;
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Fetch the change rows with a row ID above rowId, in row ID order, with
+     * the columns _id, contact_id and name.
+     */
+    static Cursor fetchAfter(IttiaDbDatabase db, long rowId) {
+        return db.query(false, CHANGE_TABLE,
+                new String[] { "_id", PhoneBookDbAdapter.KEY_CONTACT_ID, PhoneBookDbAdapter.KEY_NAME },
+                "_id > ?", new String[] { Long.toString(rowId) }, null, null, "_id", null);
+    }
+
+    /** Delete the change rows older than RETENTION_MS, read from by_change_time. */
+    static int prune(IttiaDbDatabase db, long now) {
+        return db.delete(CHANGE_TABLE, "changed_at < ?",
+                new String[] { Long.toString(now - RETENTION_MS) });
+    }
+}
@@ -1,11 +1,10 @@
 package com.example.android.ittiadb.phonebook;
 
-import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.Future;
 
 import android.app.Activity;
-import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Bundle;
 import android.view.View;
 import android.widget.ArrayAdapter;
@@ -22,21 +21,51 @@ public class ContactEdit extends Activity {
     private Spinner mRingIdSpinner;
     private ImageView mPictureImage;
     private Long mRowId;
-    private PhoneBookDbAdapter mDbHelper;
+    private ContactLoader mLoader;
+    private ContactWriter mWriter;
+
+    /**
+     * A new contact queued for insert. Its row ID is set on the writer
+     * thread when the insert runs, so that the updates queued after it can
+     * use the ID without the activity waiting for the insert.
+     */
+    private static class NewContact {
+        Future<Long> insert;
+        volatile long rowId;
+    }
+
+    // The contact being inserted while mRowId is null, or null.
+    private NewContact mNewContact;
+
+    // False while the contact is being loaded into the views. Nothing is
+    // saved until it is shown, so that the default field values are not
+    // written over the contact.
+    private boolean mLoaded;
 
     private boolean pictureChanged;
     private byte[] picture;
 
-    private int[] availablePictures;
+    // The fields as last loaded from or saved to the database. Only fields
+    // that differ from these are written.
+    private String mSavedName;
+    private Long mSavedRingId;
+    private byte[] mSavedPicture;
+
+    private PictureLoader mPictureLoader;
     private int currentPictureIndex;
 
+    // Incremented each time a different picture is chosen, so that a
+    // picture still loading when the next one is chosen is not shown.
+    private int mPictureGeneration;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        // Access the database.
-        mDbHelper = new PhoneBookDbAdapter(this);
-        mDbHelper.open();
+        // Read from the shared database on a loader thread, which waits for
+        // the database to open if the contact list has not opened it already.
+        mLoader = new ContactLoader(PhoneBookDatabase.get(this).acquire());
+        mWriter = ContactWriter.get(this);
 
         // Show the Up button in the action bar.
         getActionBar().setDisplayHomeAsUpEnabled(true);
@@ -56,6 +85,11 @@ public class ContactEdit extends Activity {
         mRowId = (savedInstanceState == null) ? null :
             (Long) savedInstanceState.getSerializable(PhoneBookDbAdapter.KEY_ROWID);
         if (mRowId == null) {
+            // A contact still being inserted when the activity was
+            // recreated.
+            mNewContact = (NewContact) getLastNonConfigurationInstance();
+        }
+        if (mRowId == null && mNewContact == null) {
             // Otherwise, get contact ID from intent extras.
             Bundle extras = getIntent().getExtras();
             mRowId = extras != null ? extras.getLong(PhoneBookDbAdapter.KEY_ROWID)
@@ -64,15 +98,10 @@ public class ContactEdit extends Activity {
 
         // Provide a fixed collection of pictures that can be assigned to
         // contacts by this application. When selected, the picture is stored
-        // in the contact record in PNG format.
-        availablePictures = new int[] {
-                R.drawable.woman1,
-                R.drawable.man1,
-                R.drawable.man2,
-                R.drawable.woman2,
-                R.drawable.woman3,
-                R.drawable.man3,
-        };
+        // in the contact record in PNG format. The pictures are prepared in
+        // the background now so that cycling through them does not wait.
+        mPictureLoader = PictureLoader.get(this);
+        mPictureLoader.prepareStockPictures();
         currentPictureIndex = 0;
 
         // Populate ring_id spinner with a list of amusing ring tones.
@@ -109,20 +138,45 @@ public class ContactEdit extends Activity {
 
     private void nextPicture()
     {
-        currentPictureIndex = (currentPictureIndex + 1) % availablePictures.length;
-        Bitmap bitmap = BitmapFactory.decodeResource(getResources(), availablePictures[currentPictureIndex]);
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.PNG, 0, stream);
-
-        pictureChanged = true;
-        showPicture(stream.toByteArray());
+        currentPictureIndex = (currentPictureIndex + 1) % mPictureLoader.getStockPictureCount();
+        final int generation = ++mPictureGeneration;
+        mPictureLoader.loadStockPicture(currentPictureIndex, new PictureLoader.Callback() {
+            @Override
+            public void onPictureLoaded(byte[] picture, Bitmap bitmap) {
+                if (generation == mPictureGeneration) {
+                    pictureChanged = true;
+                    showPicture(picture, bitmap);
+                }
+            }
+        });
     }
 
     private void showPicture(byte picture[])
+    {
+        final int generation = ++mPictureGeneration;
+        if (picture == null) {
+            showPicture(null, null);
+            return;
+        }
+
+        // Keep the picture to save, but show it only once it is decoded.
+        // Pictures of saved contacts are decoded once and then reused each
+        // time the contact is shown.
+        this.picture = picture;
+        mPictureLoader.decodePicture(mRowId, picture, new PictureLoader.Callback() {
+            @Override
+            public void onPictureLoaded(byte[] picture, Bitmap bitmap) {
+                if (generation == mPictureGeneration) {
+                    showPicture(picture, bitmap);
+                }
+            }
+        });
+    }
+
+    private void showPicture(byte picture[], Bitmap bitmap)
     {
         this.picture = picture;
         if (picture != null) {
-            Bitmap bitmap = BitmapFactory.decodeByteArray(picture, 0, picture.length);
             mPictureImage.setImageBitmap(bitmap);
             mPictureImage.setVisibility(View.VISIBLE);
         }
@@ -133,47 +187,152 @@ public class ContactEdit extends Activity {
 
     private void populateFields() {
         pictureChanged = false;
+        takeInsertedRowId();
+
+        // Edits saved when the activity was paused may still be queued. The
+        // contact is read once they are committed, which the loader thread
+        // waits for, not the main thread.
+        final Future<Void> flush = mWriter.flush();
+
+        if (mRowId == null && mNewContact != null) {
+            // Show the contact once the writer has inserted it.
+            mLoaded = false;
+            final NewContact newContact = mNewContact;
+            mLoader.load("contact", new ContactLoader.Query<ContactStore.Contact>() {
+                @Override
+                public ContactStore.Contact run(PhoneBookDbAdapter db) {
+                    ContactWriter.getUninterruptibly(flush);
+                    Long id = ContactWriter.getUninterruptibly(newContact.insert);
+                    return id != null && id > 0 ? db.readContact(id) : null;
+                }
+            }, new ContactLoader.Callback<ContactStore.Contact>() {
+                @Override
+                public void onLoadFinished(ContactStore.Contact contact) {
+                    takeInsertedRowId();
+                    if (contact != null) {
+                        showContact(contact);
+                    }
+                    else {
+                        // The insert failed. Keep the views, and insert
+                        // them again on the next save.
+                        mLoaded = true;
+                    }
+                }
+            });
+            return;
+        }
 
         if (mRowId == null) {
             mNameText.setText(getString(R.string.default_contact_name));
             mNameText.selectAll();
             mRingIdSpinner.setSelection(0);
             showPicture(null);
+            takeSnapshot();
+            return;
         }
-        else {
-            Cursor contact = mDbHelper.fetchContact(mRowId);
-            startManagingCursor(contact);
-            mNameText.setText(contact.getString(
-                    contact.getColumnIndexOrThrow(PhoneBookDbAdapter.KEY_NAME)));
-
-            int ring_id_index = contact.getColumnIndexOrThrow(PhoneBookDbAdapter.KEY_RING_ID);
-            int picture_index = contact.getColumnIndexOrThrow(PhoneBookDbAdapter.KEY_PICTURE);
 
-            if (contact.isNull(ring_id_index) || contact.getInt(ring_id_index) + 1 >= mRingIdSpinner.getCount()) {
-                mRingIdSpinner.setSelection(0);
+        // Load the contact record on the loader thread and show it in the
+        // member views when it arrives.
+        mLoaded = false;
+        final long rowId = mRowId;
+        mLoader.load("contact", new ContactLoader.Query<ContactStore.Contact>() {
+            @Override
+            public ContactStore.Contact run(PhoneBookDbAdapter db) {
+                ContactWriter.getUninterruptibly(flush);
+                return db.readContact(rowId);
             }
-            else {
-                mRingIdSpinner.setSelection(contact.getInt(ring_id_index) + 1);
+        }, new ContactLoader.Callback<ContactStore.Contact>() {
+            @Override
+            public void onLoadFinished(ContactStore.Contact contact) {
+                if (contact != null) {
+                    showContact(contact);
+                }
             }
+        });
+    }
 
-            if (contact.isNull(picture_index))
-                showPicture(null);
-            else
-                showPicture(contact.getBlob(picture_index));
+    private void showContact(ContactStore.Contact contact) {
+        pictureChanged = false;
+        mNameText.setText(contact.name);
+
+        if (contact.ringId == null || contact.ringId + 1 >= mRingIdSpinner.getCount()) {
+            mRingIdSpinner.setSelection(0);
         }
+        else {
+            mRingIdSpinner.setSelection((int) (contact.ringId + 1));
+        }
+
+        showPicture(contact.picture);
+        takeSnapshot();
+    }
+
+    private void takeSnapshot() {
+        // Take the snapshot from the views, so that a value the views cannot
+        // show, such as an unknown ring tone, is not written back.
+        mSavedName = getName();
+        mSavedRingId = getRingId();
+        mSavedPicture = picture;
+        mLoaded = true;
+    }
+
+    private String getName() {
+        String name = mNameText.getText().toString();
+        return name.isEmpty() ? getString(R.string.default_contact_name) : name;
+    }
+
+    private Long getRingId() {
+        return mRingIdSpinner.getSelectedItemId() == 0 ? null : mRingIdSpinner.getSelectedItemId() - 1;
+    }
+
+    /**
+     * Take the row ID of a new contact once its insert has committed. Does
+     * not wait for the insert.
+     */
+    private void takeInsertedRowId() {
+        if (mNewContact == null || !mNewContact.insert.isDone()) {
+            return;
+        }
+        Long id = ContactWriter.getUninterruptibly(mNewContact.insert);
+        if (id != null && id > 0) {
+            mRowId = id;
+        }
+        // If the insert failed, the next save inserts the contact again.
+        mNewContact = null;
     }
 
     @Override
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
         saveState();
-        outState.putSerializable(PhoneBookDbAdapter.KEY_ROWID, mRowId);
+        Long rowId = mRowId;
+        if (rowId == null && mNewContact != null && mNewContact.rowId > 0) {
+            // Inserted but maybe not committed yet. The writer commits it
+            // before the process can be killed.
+            rowId = mNewContact.rowId;
+        }
+        outState.putSerializable(PhoneBookDbAdapter.KEY_ROWID, rowId);
+    }
+
+    @Override
+    public Object onRetainNonConfigurationInstance() {
+        // A recreated activity takes over the contact being inserted.
+        return mRowId == null ? mNewContact : null;
     }
 
     @Override
     protected void onPause() {
         super.onPause();
         saveState();
+
+        // Start committing the edits now, before the process can be
+        // killed, without waiting for the commit.
+        mWriter.flush();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mLoader.close();
     }
 
     @Override
@@ -183,26 +342,78 @@ public class ContactEdit extends Activity {
     }
 
     private void saveState() {
-        String name = mNameText.getText().toString();
-        Long ring_id = mRingIdSpinner.getSelectedItemId() == 0 ? null : mRingIdSpinner.getSelectedItemId() - 1;
+        if (!mLoaded) {
+            // The contact is not shown yet, so there are no edits to save.
+            return;
+        }
 
-        if (name.isEmpty()) {
-            name = getString(R.string.default_contact_name);
+        String name = getName();
+        Long ring_id = getRingId();
+        takeInsertedRowId();
+
+        if (mRowId == null && mNewContact == null) {
+            // Queue the insert without waiting for it. Edits saved before it
+            // commits are queued as updates of the new contact.
+            final NewContact newContact = new NewContact();
+            final String newName = name;
+            final Long newRingId = ring_id;
+            final byte[] newPicture = picture;
+            newContact.insert = mWriter.submit(new ContactWriter.Write<Long>() {
+                @Override
+                public Long run(PhoneBookDbAdapter db) {
+                    // Run again if its group is retried, so the ID is that
+                    // of the insert that commits.
+                    newContact.rowId = 0;
+                    long id = db.createContact(newName, newRingId, newPicture);
+                    newContact.rowId = id;
+                    return id;
+                }
+            });
+            mNewContact = newContact;
+            pictureChanged = false;
+            mSavedName = name;
+            mSavedRingId = ring_id;
+            mSavedPicture = picture;
+            return;
         }
 
-        if (mRowId == null) {
-            long id = mDbHelper.createContact(name, ring_id);
-            if (id > 0) {
-                mRowId = id;
-            }
+        // Write only the fields that changed since the contact was loaded or
+        // last saved. A contact that is opened and closed is not written, so
+        // no change is replicated for it either.
+        int fields = 0;
+        if (!name.equals(mSavedName)) {
+            fields |= PhoneBookDbAdapter.FIELD_NAME;
         }
-        else {
-            mDbHelper.updateContact(mRowId, name, ring_id);
+        if (ring_id == null ? mSavedRingId != null : !ring_id.equals(mSavedRingId)) {
+            fields |= PhoneBookDbAdapter.FIELD_RING_ID;
+        }
+        if (pictureChanged && !Arrays.equals(picture, mSavedPicture)) {
+            fields |= PhoneBookDbAdapter.FIELD_PICTURE;
         }
 
-        // Update a BLOB column only when necessary.
-        if (pictureChanged) {
-            mDbHelper.updateContactPicture(mRowId, picture);
+        // The update is queued rather than waited for. onPause() flushes the
+        // queue, so the snapshot can be advanced now.
+        if (fields != 0) {
+            final long savedRowId = mRowId != null ? mRowId : 0;
+            final NewContact newContact = mNewContact;
+            final int changedFields = fields;
+            final String newName = name;
+            final Long newRingId = ring_id;
+            final byte[] newPicture = picture;
+            mWriter.submit(new ContactWriter.Write<Boolean>() {
+                @Override
+                public Boolean run(PhoneBookDbAdapter db) {
+                    // A new contact's insert runs before this, so its ID is
+                    // set unless the insert failed.
+                    final long rowId = newContact != null ? newContact.rowId : savedRowId;
+                    return rowId > 0 &&
+                            db.updateContact(rowId, changedFields, newName, newRingId, newPicture);
+                }
+            });
+            mSavedName = name;
+            mSavedRingId = ring_id;
+            mSavedPicture = picture;
         }
+        pictureChanged = false;
     }
 }
@@ -0,0 +1,904 @@
+package com.example.android.ittiadb.phonebook;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.Filter;
+import android.widget.Filterable;
+import android.widget.SectionIndexer;
+import android.widget.TextView;
+
+/**
+ * A list adapter that reads the contact table one page at a time.
+ *
+ * The list is in the order of the contacts' locale sort keys. It is divided
+ * into segments, each covering a fixed range of (sort_key, _id) keys and
+ * holding about one page of rows. Segments are found with keyset queries on
+ * the by_sort_key index, so only the rows near the scroll
+ * position are held in memory. Segments ahead of the last position shown are
+ * loaded early, and the rows of segments far from it are dropped. A dropped
+ * segment is fetched again by its key range, without walking the list from
+ * the top.
+ *
+ * Because segment ranges never move, changes from ContactChangeFeed are
+ * applied by adjusting the size of the one segment each changed key falls in
+ * and reloading it only if its rows are in memory. The key of a changed row
+ * is made from its name with SortKeys, as the database does.
+ *
+ * While the database is writing sort keys, after an upgrade or a change of
+ * locale, the list is in (name, _id) order instead and names serve as keys.
+ * See PhoneBookDbAdapter.isListInNameOrder(). Each refresh reads the order
+ * anew, and the walks and reloads that follow it keep that order.
+ *
+ * The list can be limited to names that start with a prefix, typed into the
+ * list's text filter. Matches are found in the by_name index and paged in
+ * its (name, _id) order, so no page sorts the matches.
+ *
+ * For the fast scroll thumb, the full list is divided into alphabet
+ * sections. The number of contacts in each is read from the counts the
+ * database keeps, when the list is refreshed, and adjusted by each change
+ * like the segments are. The position of a section is the sum of the sizes
+ * of the sections before it, so the index is ready before any row past the
+ * first page has been read. A filtered list has no sections. When fast
+ * scroll jumps more than a page past the rows reached, reading starts at
+ * the target section, with a keyset query from the sort key of its label,
+ * instead of walking every page before it. Each section skipped becomes a
+ * segment of its counted size, read only if the list scrolls into it.
+ *
+ * All queries run on a ContactLoader thread. Rows that have not arrived yet
+ * are shown empty and disabled, and refresh() keeps showing the current rows
+ * until the new ones are ready. A new refresh or search cancels the previous
+ * one.
+ */
+public class ContactListAdapter extends BaseAdapter
+        implements ContactChangeFeed.Listener, Filterable, SectionIndexer {
+    /** Number of rows fetched by each page query. */
+    public static final int PAGE_SIZE = 100;
+
+    /** Number of rows loaded ahead of the row being shown. */
+    private static final int ROWS_AHEAD = PAGE_SIZE;
+
+    /** Segments further than this many rows from the row shown are dropped. */
+    private static final int ROWS_RETAINED = 3 * PAGE_SIZE;
+
+    private static final String KEY_REFRESH = "refresh";
+    private static final String KEY_WALK = "walk";
+    private static final String KEY_SEGMENT = "segment";
+
+    /** Rows of the contact list, in list order. */
+    private static class Page {
+        final long[] ids;
+        final String[] names;
+        final String[] sortKeys;
+        final Bitmap[] thumbnails;
+
+        Page(Cursor c) {
+            final int count = c.getCount();
+            final int idIndex = c.getColumnIndexOrThrow(PhoneBookDbAdapter.KEY_ROWID);
+            final int nameIndex = c.getColumnIndexOrThrow(PhoneBookDbAdapter.KEY_NAME);
+            final int sortKeyIndex = c.getColumnIndexOrThrow(PhoneBookDbAdapter.KEY_SORT_KEY);
+            final int hashIndex = c.getColumnIndexOrThrow(PhoneBookDbAdapter.KEY_PICTURE_HASH);
+            final int thumbnailIndex = c.getColumnIndexOrThrow(PhoneBookDbAdapter.KEY_THUMBNAIL);
+
+            // Contacts that share a picture share one decoded thumbnail.
+            HashMap<String, Bitmap> decoded = new HashMap<String, Bitmap>();
+
+            ids = new long[count];
+            names = new String[count];
+            sortKeys = new String[count];
+            thumbnails = new Bitmap[count];
+            for (int i = 0; c.moveToNext() && i < count; ++i) {
+                ids[i] = c.getLong(idIndex);
+                names[i] = c.getString(nameIndex);
+                sortKeys[i] = c.getString(sortKeyIndex);
+                if (!c.isNull(thumbnailIndex)) {
+                    String hash = c.getString(hashIndex);
+                    Bitmap bitmap = decoded.get(hash);
+                    if (bitmap == null) {
+                        byte[] thumbnail = c.getBlob(thumbnailIndex);
+                        bitmap = BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length);
+                        decoded.put(hash, bitmap);
+                    }
+                    thumbnails[i] = bitmap;
+                }
+            }
+        }
+
+        Page(Page source, int from, int to) {
+            ids = new long[to - from];
+            names = new String[to - from];
+            sortKeys = new String[to - from];
+            thumbnails = new Bitmap[to - from];
+            System.arraycopy(source.ids, from, ids, 0, ids.length);
+            System.arraycopy(source.names, from, names, 0, names.length);
+            System.arraycopy(source.sortKeys, from, sortKeys, 0, sortKeys.length);
+            System.arraycopy(source.thumbnails, from, thumbnails, 0, thumbnails.length);
+        }
+
+        int size() {
+            return ids.length;
+        }
+    }
+
+    /**
+     * The contacts with a key after (afterKey, afterId) and no later than
+     * (lastKey, lastId). A null afterKey means the start of the list.
+     */
+    private static class Segment {
+        final String afterKey;
+        final long afterId;
+        final String lastKey;
+        final long lastId;
+
+        /** Position of the first row in the list. */
+        int start;
+        /** Number of rows, exact when loaded and adjusted by changes since. */
+        int size;
+        /** Rows, or null if not loaded. */
+        Page page;
+
+        /** Incremented by each change that falls in this segment. */
+        int version;
+        /** The rows in page are out of date and should be read again. */
+        boolean stale;
+        boolean pending;
+        /** The segment was replaced and is no longer in the list. */
+        boolean removed;
+
+        Segment(String afterKey, long afterId, String lastKey, long lastId, Page page) {
+            this.afterKey = afterKey;
+            this.afterId = afterId;
+            this.lastKey = lastKey;
+            this.lastId = lastId;
+            this.page = page;
+            this.size = page.size();
+        }
+
+        /** A segment that has not been read, with an estimated size. */
+        Segment(String afterKey, long afterId, String lastKey, long lastId, int size) {
+            this.afterKey = afterKey;
+            this.afterId = afterId;
+            this.lastKey = lastKey;
+            this.lastId = lastId;
+            this.size = size;
+        }
+    }
+
+    /** Alphabet sections of the list, in list order, with their sizes. */
+    private static class Sections {
+        final ArrayList<String> labels = new ArrayList<String>();
+        final ArrayList<String> sortKeys = new ArrayList<String>();
+        final ArrayList<Integer> sizes = new ArrayList<Integer>();
+        // Labels as returned by getSections(), or null if changed since.
+        Object[] array;
+
+        Sections(Cursor c) {
+            while (c.moveToNext()) {
+                add(c.getString(0), c.getInt(1));
+            }
+        }
+
+        /**
+         * Add delta to the size of a section, adding the section if it is
+         * new and removing it if it becomes empty.
+         */
+        void add(String label, int delta) {
+            final String sortKey = SortKeys.get(label);
+            int low = 0;
+            int high = labels.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (sortKeys.get(mid).compareTo(sortKey) < 0) {
+                    low = mid + 1;
+                }
+                else {
+                    high = mid;
+                }
+            }
+
+            if (low < labels.size() && labels.get(low).equals(label)) {
+                final int size = sizes.get(low) + delta;
+                if (size > 0) {
+                    sizes.set(low, size);
+                    return;
+                }
+                labels.remove(low);
+                sortKeys.remove(low);
+                sizes.remove(low);
+            }
+            else if (delta > 0) {
+                labels.add(low, label);
+                sortKeys.add(low, sortKey);
+                sizes.add(low, delta);
+            }
+            else {
+                return;
+            }
+            array = null;
+        }
+    }
+
+    /** Segments read by one background walk forward from a key. */
+    private static class Walk {
+        int count = -1;
+        Sections sections;
+        final String prefix;
+        final boolean byName;
+        final String afterKey;
+        final long afterId;
+        final ArrayList<Segment> segments = new ArrayList<Segment>();
+        boolean reachedEnd;
+
+        Walk(String prefix, boolean byName, String afterKey, long afterId) {
+            this.prefix = prefix;
+            this.byName = byName;
+            this.afterKey = afterKey;
+            this.afterId = afterId;
+        }
+
+        /**
+         * Read at least rows rows after the starting key, one page at a time.
+         * The rows of pages far from keepPosition are not kept.
+         */
+        void run(PhoneBookDbAdapter db, int startPosition, int rows, int keepPosition) {
+            String key = afterKey;
+            long id = afterId;
+            int position = startPosition;
+
+            while (position - startPosition < rows) {
+                Cursor c = prefix != null ? db.searchByNamePrefix(prefix, key, id, PAGE_SIZE) :
+                        db.fetchContactsAfter(byName, key, id, PAGE_SIZE);
+                Page page;
+                try {
+                    page = new Page(c);
+                }
+                finally {
+                    c.close();
+                }
+
+                if (page.size() > 0) {
+                    final int last = page.size() - 1;
+                    Segment segment = new Segment(key, id, page.sortKeys[last], page.ids[last], page);
+                    segment.start = position;
+                    if (!isNear(segment, keepPosition)) {
+                        segment.page = null;
+                    }
+                    segments.add(segment);
+
+                    key = page.sortKeys[last];
+                    id = page.ids[last];
+                    position += page.size();
+                }
+                if (page.size() < PAGE_SIZE) {
+                    reachedEnd = true;
+                    break;
+                }
+            }
+        }
+    }
+
+    private final LayoutInflater mInflater;
+    private final Resources mResources;
+    private final ContactLoader mLoader;
+    private Filter mFilter;
+
+    // Only names that start with this are listed, unless it is null.
+    private String mPrefix;
+    // The list is in (name, _id) order, and the keys of segments are names
+    // rather than sort keys. Set by each refresh.
+    private boolean mByName;
+
+    // Incremented by refresh() so that results requested before it are
+    // ignored.
+    private int mGeneration;
+    // Last row shown. Read by the loader thread to skip segments the list has
+    // already scrolled away from.
+    private volatile int mCurrentPosition;
+
+    // Estimated number of rows. Rows after the last segment have not been
+    // reached yet.
+    private int mCount;
+    private final ArrayList<Segment> mSegments = new ArrayList<Segment>();
+    private final ArrayList<Segment> mLoadedSegments = new ArrayList<Segment>();
+    private boolean mWalkPending;
+    // Sections of the full list, or null while it is filtered.
+    private Sections mSections;
+
+    public ContactListAdapter(Context context, ContactLoader loader) {
+        mInflater = LayoutInflater.from(context);
+        mResources = context.getResources();
+        mLoader = loader;
+        ContactChangeFeed.get().registerListener(this);
+        refresh();
+    }
+
+    /**
+     * Stop receiving changes. The adapter should not be used afterwards.
+     */
+    public void close() {
+        ContactChangeFeed.get().unregisterListener(this);
+    }
+
+    /**
+     * Count the contacts again and reload the rows from the start of the list
+     * to the current position. The rows shown now are kept until the new rows
+     * arrive.
+     */
+    public void refresh() {
+        final int generation = ++mGeneration;
+        final int currentPosition = mCurrentPosition;
+        final String prefix = mPrefix;
+        mWalkPending = false;
+
+        mLoader.load(KEY_REFRESH, new ContactLoader.Query<Walk>() {
+            @Override
+            public Walk run(PhoneBookDbAdapter db) {
+                Walk walk = new Walk(prefix, prefix != null || db.isListInNameOrder(), null, 0);
+                walk.run(db, 0, currentPosition + ROWS_AHEAD + 1, currentPosition);
+                // Most searches end within the first page, so they need no
+                // separate count.
+                walk.count = walk.reachedEnd ? -1 : db.countContacts(prefix);
+                if (prefix == null) {
+                    Cursor c = db.fetchSections();
+                    try {
+                        walk.sections = new Sections(c);
+                    }
+                    finally {
+                        c.close();
+                    }
+                }
+                return walk;
+            }
+        }, new ContactLoader.Callback<Walk>() {
+            @Override
+            public void onLoadFinished(Walk walk) {
+                if (walk == null || generation != mGeneration) {
+                    return;
+                }
+
+                for (Segment segment : mSegments) {
+                    segment.removed = true;
+                }
+                mSegments.clear();
+                mLoadedSegments.clear();
+                mCount = Math.max(walk.count, 0);
+                mByName = walk.byName;
+                mSections = walk.sections;
+                append(walk);
+                notifyDataSetChanged();
+            }
+        });
+    }
+
+    @Override
+    public void onContactsChanged(ContactChangeFeed.Changes changes) {
+        if (changes.otherRowsDeleted || changes.orderChanged) {
+            // Rows were removed from or moved to unknown places in the list,
+            // so no segment size can be trusted.
+            refresh();
+            return;
+        }
+
+        int first = mSegments.size();
+        for (ContactChangeFeed.Row row : changes.inserted) {
+            first = Math.min(first, resize(row.name, row.id, 1));
+        }
+        for (ContactChangeFeed.Row row : changes.deleted) {
+            first = Math.min(first, resize(row.name, row.id, -1));
+        }
+        for (ContactChangeFeed.Row row : changes.updated) {
+            if (row.previousName != null) {
+                // The row moves to a new place in the list.
+                first = Math.min(first, resize(row.previousName, row.id, -1));
+                first = Math.min(first, resize(row.name, row.id, 1));
+            }
+            else {
+                resize(row.name, row.id, 0);
+            }
+        }
+
+        if (changes.otherRowsUpdated) {
+            for (Segment segment : mLoadedSegments) {
+                segment.stale = true;
+            }
+        }
+
+        updateStarts(first);
+        notifyDataSetChanged();
+    }
+
+    /**
+     * List only contacts whose name starts with prefix, or all contacts if
+     * prefix is null or empty. The list is reloaded from the top.
+     */
+    public void setNamePrefix(String prefix) {
+        if (prefix != null && prefix.isEmpty()) {
+            prefix = null;
+        }
+        if (prefix == null ? mPrefix == null : prefix.equals(mPrefix)) {
+            return;
+        }
+
+        mPrefix = prefix;
+        mCurrentPosition = 0;
+        refresh();
+    }
+
+    @Override
+    public Filter getFilter() {
+        if (mFilter == null) {
+            // The filter only passes the text typed to setNamePrefix(). The
+            // search itself runs on the loader thread, where each new prefix
+            // cancels the search for the previous one.
+            mFilter = new Filter() {
+                @Override
+                protected FilterResults performFiltering(CharSequence constraint) {
+                    FilterResults results = new FilterResults();
+                    results.values = constraint != null ? constraint.toString() : null;
+                    return results;
+                }
+
+                @Override
+                protected void publishResults(CharSequence constraint, FilterResults results) {
+                    setNamePrefix((String) results.values);
+                }
+            };
+        }
+        return mFilter;
+    }
+
+    /**
+     * Adjust the size of the segment and the section containing a key and
+     * mark its rows out of date. Returns the index of the segment, or the
+     * number of segments if the key has not been reached yet.
+     */
+    private int resize(String name, long id, int delta) {
+        if (mPrefix != null && (name == null || !name.startsWith(mPrefix))) {
+            // The row is not listed.
+            return mSegments.size();
+        }
+        if (mSections != null && name != null && delta != 0) {
+            mSections.add(SortKeys.getSection(name), delta);
+        }
+
+        int index = name != null ? findSegment(mByName ? name : SortKeys.get(name), id) : mSegments.size();
+        mCount = Math.max(0, mCount + delta);
+        if (index < mSegments.size()) {
+            Segment segment = mSegments.get(index);
+            segment.size = Math.max(0, segment.size + delta);
+            segment.version++;
+            if (segment.page != null) {
+                segment.stale = true;
+            }
+        }
+        return index;
+    }
+
+    @Override
+    public Object[] getSections() {
+        if (mSections == null) {
+            return new Object[0];
+        }
+        if (mSections.array == null) {
+            mSections.array = mSections.labels.toArray();
+        }
+        return mSections.array;
+    }
+
+    @Override
+    public int getPositionForSection(int section) {
+        if (mSections == null) {
+            return 0;
+        }
+        return Math.max(0, Math.min(sectionStart(section), mCount - 1));
+    }
+
+    /** Sum of the sizes of the sections before a section. */
+    private int sectionStart(int section) {
+        section = Math.min(section, mSections.sizes.size());
+        int position = 0;
+        for (int i = 0; i < section; ++i) {
+            position += mSections.sizes.get(i);
+        }
+        return position;
+    }
+
+    @Override
+    public int getSectionForPosition(int position) {
+        if (mSections == null) {
+            return 0;
+        }
+        int end = 0;
+        for (int i = 0; i < mSections.sizes.size(); ++i) {
+            end += mSections.sizes.get(i);
+            if (position < end) {
+                return i;
+            }
+        }
+        return Math.max(0, mSections.sizes.size() - 1);
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public Object getItem(int position) {
+        Segment segment = segmentAt(position);
+        return (segment != null && segment.page != null &&
+                position - segment.start < segment.page.size()) ?
+                segment.page.names[position - segment.start] : null;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        Segment segment = segmentAt(position);
+        return (segment != null && segment.page != null &&
+                position - segment.start < segment.page.size()) ?
+                segment.page.ids[position - segment.start] : 0;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public boolean areAllItemsEnabled() {
+        return false;
+    }
+
+    @Override
+    public boolean isEnabled(int position) {
+        // Rows cannot be selected until they are loaded.
+        Segment segment = segmentAt(position);
+        return segment != null && segment.page != null &&
+                position - segment.start < segment.page.size();
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView view = (TextView) (convertView != null ? convertView :
+                mInflater.inflate(R.layout.contacts_row, parent, false));
+
+        mCurrentPosition = position;
+
+        Segment segment = load(position);
+        int offset = segment != null ? position - segment.start : 0;
+        if (segment != null && segment.page != null && offset < segment.page.size()) {
+            Page page = segment.page;
+            view.setText(page.names[offset]);
+            view.setCompoundDrawablesWithIntrinsicBounds(page.thumbnails[offset] == null ? null :
+                    new BitmapDrawable(mResources, page.thumbnails[offset]), null, null, null);
+        }
+        else {
+            view.setText(null);
+            view.setCompoundDrawables(null, null, null, null);
+        }
+
+        // Read ahead of the scroll position and forget rows left far behind.
+        load(position + ROWS_AHEAD);
+        trim();
+
+        return view;
+    }
+
+    /**
+     * Returns the segment containing a position, and requests its rows from
+     * the loader if they are missing or out of date. Returns null if the
+     * position has not been reached yet.
+     */
+    private Segment load(int position) {
+        if (position < 0 || position >= mCount) {
+            return null;
+        }
+
+        Segment segment = segmentAt(position);
+        if (segment == null) {
+            walkTo(position);
+        }
+        else if (segment.page == null || segment.stale) {
+            reload(segment);
+        }
+        return segment;
+    }
+
+    /**
+     * Read the segments after the last one, up to the given position. If
+     * the position is in a section more than a page past the last segment,
+     * the sections before it are skipped.
+     */
+    private void walkTo(int position) {
+        if (mWalkPending) {
+            return;
+        }
+        mWalkPending = true;
+
+        final int generation = mGeneration;
+        final String prefix = mPrefix;
+        final boolean byName = mByName;
+        final Segment last = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+        final ArrayList<Segment> skipped = skipTo(position);
+        final Segment from = skipped != null ? skipped.get(skipped.size() - 1) : last;
+        final int startPosition = skipped != null ? from.start + from.size : end();
+        final int rows = position - startPosition + 1;
+
+        mLoader.load(KEY_WALK, new ContactLoader.Query<Walk>() {
+            @Override
+            public Walk run(PhoneBookDbAdapter db) {
+                Walk walk = from == null ? new Walk(prefix, byName, null, 0) :
+                        new Walk(prefix, byName, from.lastKey, from.lastId);
+                walk.run(db, startPosition, rows, mCurrentPosition);
+                return walk;
+            }
+        }, new ContactLoader.Callback<Walk>() {
+            @Override
+            public void onLoadFinished(Walk walk) {
+                if (generation != mGeneration) {
+                    return;
+                }
+                mWalkPending = false;
+
+                // Segments may have been split since the walk started, but the
+                // key it started from must still end the list.
+                Segment current = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+                if (walk == null || (current == null ? last != null : last == null ||
+                        !current.lastKey.equals(last.lastKey) || current.lastId != last.lastId)) {
+                    return;
+                }
+                if (skipped != null) {
+                    walk.segments.addAll(0, skipped);
+                }
+                append(walk);
+                notifyDataSetChanged();
+            }
+        });
+    }
+
+    /**
+     * Returns segments that have not been read, one per section, covering
+     * the rows from the end of the last segment to the start of the section
+     * containing a position, or null if that is no more than a page away.
+     * A section starts after the sort key of its label with an ID of -1,
+     * which comes before every contact in it, and its rows are counted by
+     * the section sizes.
+     */
+    private ArrayList<Segment> skipTo(int position) {
+        if (mSections == null || mByName) {
+            return null;
+        }
+        final int end = end();
+        final int target = getSectionForPosition(position);
+        if (sectionStart(target) <= end + PAGE_SIZE) {
+            return null;
+        }
+
+        ArrayList<Segment> skipped = new ArrayList<Segment>();
+        final Segment last = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+        String afterKey = last != null ? last.lastKey : null;
+        long afterId = last != null ? last.lastId : 0;
+        int start = end;
+        for (int i = getSectionForPosition(end) + 1; i <= target; ++i) {
+            final String sortKey = mSections.sortKeys.get(i);
+            final int next = sectionStart(i);
+            // Skip a section boundary that the segments have already passed.
+            if (next <= start || (afterKey != null && compareKeys(afterKey, afterId, sortKey, -1) >= 0)) {
+                continue;
+            }
+            Segment segment = new Segment(afterKey, afterId, sortKey, -1, next - start);
+            segment.start = start;
+            skipped.add(segment);
+
+            afterKey = sortKey;
+            afterId = -1;
+            start = next;
+        }
+        return skipped.isEmpty() ? null : skipped;
+    }
+
+    /**
+     * Read the rows of a segment again.
+     */
+    private void reload(final Segment segment) {
+        if (segment.pending) {
+            return;
+        }
+        segment.pending = true;
+
+        final int generation = mGeneration;
+        final int version = segment.version;
+        final int start = segment.start;
+        final int end = segment.start + segment.size;
+        final boolean byName = mByName;
+
+        // The first segment of a search starts at the prefix itself, which
+        // comes before every name that starts with it.
+        final boolean fromPrefix = segment.afterKey == null && mPrefix != null;
+        final String afterKey = fromPrefix ? mPrefix : segment.afterKey;
+        final long afterId = fromPrefix ? -1 : segment.afterId;
+
+        mLoader.load(KEY_SEGMENT + System.identityHashCode(segment), new ContactLoader.Query<Page>() {
+            @Override
+            public Page run(PhoneBookDbAdapter db) {
+                final int current = mCurrentPosition;
+                if (current < start - ROWS_RETAINED - PAGE_SIZE ||
+                        current >= end + ROWS_RETAINED + PAGE_SIZE) {
+                    // The list has scrolled away before the rows were read.
+                    return null;
+                }
+
+                Cursor c = db.fetchContactsBetween(byName, afterKey, afterId,
+                        segment.lastKey, segment.lastId);
+                try {
+                    return new Page(c);
+                }
+                finally {
+                    c.close();
+                }
+            }
+        }, new ContactLoader.Callback<Page>() {
+            @Override
+            public void onLoadFinished(Page page) {
+                segment.pending = false;
+                if (page == null || segment.removed || generation != mGeneration) {
+                    return;
+                }
+
+                final int index = mSegments.indexOf(segment);
+                mCount = Math.max(0, mCount + page.size() - segment.size);
+                if (page.size() > 2 * PAGE_SIZE) {
+                    split(index, page);
+                }
+                else {
+                    segment.page = page;
+                    segment.size = page.size();
+                    if (!mLoadedSegments.contains(segment)) {
+                        mLoadedSegments.add(segment);
+                    }
+                    // Read again if a change arrived while this was loading.
+                    segment.stale = segment.version != version;
+                }
+                updateStarts(index);
+                notifyDataSetChanged();
+            }
+        });
+    }
+
+    /**
+     * Replace a segment that has grown too large with segments of one page
+     * each.
+     */
+    private void split(int index, Page page) {
+        Segment segment = mSegments.remove(index);
+        segment.removed = true;
+        mLoadedSegments.remove(segment);
+
+        String afterKey = segment.afterKey;
+        long afterId = segment.afterId;
+        for (int from = 0; from < page.size(); from += PAGE_SIZE) {
+            final int to = Math.min(from + PAGE_SIZE, page.size());
+            final boolean last = to == page.size();
+            Segment part = new Segment(afterKey, afterId,
+                    last ? segment.lastKey : page.sortKeys[to - 1],
+                    last ? segment.lastId : page.ids[to - 1],
+                    new Page(page, from, to));
+            mSegments.add(index++, part);
+            mLoadedSegments.add(part);
+
+            afterKey = part.lastKey;
+            afterId = part.lastId;
+        }
+    }
+
+    private void append(Walk walk) {
+        final int first = mSegments.size();
+        for (Segment segment : walk.segments) {
+            mSegments.add(segment);
+            if (segment.page != null) {
+                mLoadedSegments.add(segment);
+            }
+        }
+        updateStarts(first);
+
+        if (walk.reachedEnd) {
+            mCount = end();
+        }
+        else {
+            mCount = Math.max(mCount, end());
+        }
+    }
+
+    /** Drop the rows of segments far from the current position. */
+    private void trim() {
+        for (int i = mLoadedSegments.size() - 1; i >= 0; --i) {
+            Segment segment = mLoadedSegments.get(i);
+            if (!isNear(segment, mCurrentPosition)) {
+                segment.page = null;
+                segment.stale = false;
+                mLoadedSegments.remove(i);
+            }
+        }
+    }
+
+    private static boolean isNear(Segment segment, int position) {
+        return position >= segment.start - ROWS_RETAINED &&
+                position < segment.start + segment.size + ROWS_RETAINED;
+    }
+
+    /** Position after the last row of the last segment. */
+    private int end() {
+        if (mSegments.isEmpty()) {
+            return 0;
+        }
+        Segment last = mSegments.get(mSegments.size() - 1);
+        return last.start + last.size;
+    }
+
+    private void updateStarts(int index) {
+        int start = index > 0 ? mSegments.get(index - 1).start + mSegments.get(index - 1).size : 0;
+        for (int i = index; i < mSegments.size(); ++i) {
+            Segment segment = mSegments.get(i);
+            segment.start = start;
+            start += segment.size;
+        }
+    }
+
+    /** Returns the segment containing a position, or null if not reached. */
+    private Segment segmentAt(int position) {
+        int low = 0;
+        int high = mSegments.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (mSegments.get(mid).start <= position) {
+                low = mid + 1;
+            }
+            else {
+                high = mid - 1;
+            }
+        }
+        if (high < 0) {
+            return null;
+        }
+        Segment segment = mSegments.get(high);
+        return position < segment.start + segment.size ? segment : null;
+    }
+
+    /**
+     * Returns the index of the segment whose key range contains a key, or
+     * the number of segments if the key is after all of them.
+     */
+    private int findSegment(String sortKey, long id) {
+        int low = 0;
+        int high = mSegments.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            Segment segment = mSegments.get(mid);
+            if (compareKeys(segment.lastKey, segment.lastId, sortKey, id) < 0) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int compareKeys(String key1, long id1, String key2, long id2) {
+        int result = key1.compareTo(key2);
+        if (result == 0) {
+            result = id1 < id2 ? -1 : (id1 == id2 ? 0 : 1);
+        }
+        return result;
+    }
+}
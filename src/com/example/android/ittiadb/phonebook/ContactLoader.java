@@ -0,0 +1,154 @@
+package com.example.android.ittiadb.phonebook;
+
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Runs database work for an activity on one background thread and delivers
+ * query results back on the main thread.
+ *
+ * Each query is submitted under a key. Submitting a new query with the same
+ * key cancels the previous one: it is skipped if it has not started yet, and
+ * its result is dropped if it has. All methods except Query.run() must be
+ * called on the main thread.
+ */
+public class ContactLoader {
+    private static final String TAG = "ContactLoader";
+
+    /** Work performed on the loader thread. */
+    public interface Query<T> {
+        T run(PhoneBookDbAdapter db);
+    }
+
+    /**
+     * Receives the result of a query on the main thread. The result is null
+     * if the query threw an exception.
+     */
+    public interface Callback<T> {
+        void onLoadFinished(T result);
+    }
+
+    private static class Request {
+        volatile boolean cancelled;
+    }
+
+    private final PhoneBookDatabase.Lease mLease;
+    // Set on the loader thread once the database is open.
+    private PhoneBookDbAdapter mDbHelper;
+    private final ExecutorService mExecutor;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final HashMap<String, Request> mRequests = new HashMap<String, Request>();
+
+    /**
+     * Create a loader that queries the shared database through a lease,
+     * which it releases when closed. Queries wait on the loader thread
+     * until the database is open.
+     */
+    public ContactLoader(PhoneBookDatabase.Lease lease) {
+        mLease = lease;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, TAG);
+            }
+        });
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mDbHelper = mLease.get();
+                }
+                catch (RuntimeException ex) {
+                    Log.e(TAG, "Could not open the database", ex);
+                }
+            }
+        });
+    }
+
+    public <T> void load(final String key, final Query<T> query, final Callback<T> callback) {
+        final Request request = new Request();
+        Request previous = mRequests.put(key, request);
+        if (previous != null) {
+            previous.cancelled = true;
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (request.cancelled) {
+                    return;
+                }
+
+                T result;
+                try {
+                    result = query.run(mDbHelper);
+                }
+                catch (RuntimeException ex) {
+                    Log.e(TAG, "Query failed", ex);
+                    result = null;
+                }
+
+                final T finalResult = result;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!request.cancelled) {
+                            mRequests.remove(key);
+                            callback.onLoadFinished(finalResult);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Run a database operation, such as a write, on the loader thread after
+     * all queries submitted before it.
+     */
+    public void execute(final Query<?> operation) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    operation.run(mDbHelper);
+                }
+                catch (RuntimeException ex) {
+                    Log.e(TAG, "Operation failed", ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Cancel all pending queries and release the database once the loader
+     * thread is idle.
+     */
+    public void close() {
+        for (Request request : mRequests.values()) {
+            request.cancelled = true;
+        }
+        mRequests.clear();
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mLease.release();
+            }
+        });
+        mExecutor.shutdown();
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.android.ittiadb.phonebook;
+
+/**
+ * Storage operations on contacts, without Android types.
+ *
+ * PhoneBookDbAdapter implements this on the ITTIA DB database, and
+ * MemoryContactStore implements it in plain Java, so code written against
+ * ContactStore can also run, and be measured, on a desktop JVM. Contacts
+ * are listed in (name, _id) order and paged by key, as in the contact list.
+ */
+public interface ContactStore {
+    /** Fields that can be passed to updateContact(long, int, ...). */
+    int FIELD_NAME = 1;
+    int FIELD_RING_ID = 2;
+    int FIELD_PICTURE = 4;
+
+    /** A contact's fields. */
+    public static class Contact {
+        public final String name;
+        public final Long ringId;
+        public final byte[] picture;
+
+        public Contact(String name, Long ringId, byte[] picture) {
+            this.name = name;
+            this.ringId = ringId;
+            this.picture = picture;
+        }
+    }
+
+    /** Receives the rows of scanContactsAfter(). */
+    public interface RowVisitor {
+        /**
+         * Called for each row. pictureKey is null if the contact has no
+         * picture, and is equal for contacts with the same picture.
+         */
+        void onRow(long rowId, String name, String pictureKey);
+    }
+
+    /**
+     * Insert a contact. The picture can be null. Returns the new row ID, or
+     * -1 if the contact could not be inserted.
+     */
+    long createContact(String name, Long ringId, byte[] picture);
+
+    /**
+     * Returns the fields of a contact, with its full-size picture, or null
+     * if there is no such contact.
+     */
+    Contact readContact(long rowId);
+
+    /**
+     * Visit at most limit contacts in (name, _id) order, starting after the
+     * given key. Pass a null name to start at the first contact. Returns the
+     * number of contacts visited.
+     */
+    int scanContactsAfter(String name, long rowId, int limit, RowVisitor visitor);
+
+    /**
+     * Write the given fields of a contact and leave the others unchanged.
+     * Returns false if fields is 0, if FIELD_NAME is given with a null
+     * name, or if there is no such contact.
+     */
+    boolean updateContact(long rowId, int fields, String name, Long ringId, byte[] picture);
+
+    /** Delete a contact. Returns false if there is no such contact. */
+    boolean deleteContact(long rowId);
+
+    int countContacts();
+}
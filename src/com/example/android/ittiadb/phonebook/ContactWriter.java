@@ -0,0 +1,251 @@
+package com.example.android.ittiadb.phonebook;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.database.SQLException;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Writes contacts on one background thread, committing queued writes in
+ * groups.
+ *
+ * Writes are queued by submit() and run in order on the writer thread,
+ * on the shared connection of PhoneBookDatabase, which it leases for each
+ * group. The writer waits up to
+ * MAX_GROUP_DELAY_MS after the first write of a group for more writes to
+ * arrive, then runs up to MAX_GROUP_SIZE of them in one transaction, so
+ * the cost of a commit is shared by all writes in the group. Each write's
+ * future completes once its group has committed.
+ *
+ * If any write in a group throws, the group is rolled back and each of its
+ * writes is run again in a transaction of its own, so that only the failed
+ * write reports an error.
+ *
+ * Queued writes are kept as long as the process runs. Activities call
+ * flush() when they are paused, which starts the commit of their edits at
+ * once without waiting for it. The process cannot be killed before the
+ * activity has also stopped, by which time the commit has finished.
+ *
+ * If the database cannot be opened, the writes of the group fail with the
+ * exception of the open. The next group tries to open it again.
+ */
+public class ContactWriter {
+    private static final String TAG = "ContactWriter";
+
+    /** Largest number of writes committed together. */
+    public static final int MAX_GROUP_SIZE = 50;
+
+    /** Longest time a write waits for others to join its group. */
+    public static final long MAX_GROUP_DELAY_MS = 20;
+
+    /** Work performed on the writer thread. */
+    public interface Write<T> {
+        T run(PhoneBookDbAdapter db);
+    }
+
+    private static class Request<T> implements Callable<T> {
+        final Write<T> write;
+        final FutureTask<T> future = new FutureTask<T>(this);
+
+        // A flush request ends its group without waiting for more writes.
+        final boolean flush;
+
+        T result;
+        RuntimeException error;
+
+        Request(Write<T> write, boolean flush) {
+            this.write = write;
+            this.flush = flush;
+        }
+
+        void run(PhoneBookDbAdapter db) {
+            error = null;
+            if (!future.isCancelled()) {
+                result = write.run(db);
+            }
+        }
+
+        /** Called by the future to report the outcome of the write. */
+        @Override
+        public T call() {
+            if (error != null) {
+                throw error;
+            }
+            return result;
+        }
+    }
+
+    private static ContactWriter sInstance;
+
+    private final PhoneBookDatabase mDatabase;
+    private final LinkedBlockingQueue<Request<?>> mQueue = new LinkedBlockingQueue<Request<?>>();
+
+    /** Returns the writer, starting it on first use. */
+    public static synchronized ContactWriter get(Context context) {
+        if (sInstance == null) {
+            sInstance = new ContactWriter(PhoneBookDatabase.get(context));
+        }
+        return sInstance;
+    }
+
+    private ContactWriter(PhoneBookDatabase database) {
+        mDatabase = database;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runWriter();
+            }
+        }, TAG);
+        thread.start();
+    }
+
+    /**
+     * Queue a write. May be called on any thread. The returned future gives
+     * the write's result once it is committed, or the exception it threw.
+     */
+    public <T> Future<T> submit(Write<T> write) {
+        Request<T> request = new Request<T>(write, false);
+        mQueue.add(request);
+        return request.future;
+    }
+
+    /**
+     * Commit all writes queued so far, without waiting for more writes to
+     * join their group. Returns at once. The returned future completes once
+     * they are committed.
+     */
+    public Future<Void> flush() {
+        Request<Void> request = new Request<Void>(new Write<Void>() {
+            @Override
+            public Void run(PhoneBookDbAdapter db) {
+                return null;
+            }
+        }, true);
+        mQueue.add(request);
+        return request.future;
+    }
+
+    /**
+     * Wait for a write to be committed and return its result. Returns null
+     * if the write threw, after logging the exception.
+     */
+    public static <T> T getUninterruptibly(Future<T> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                }
+                catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+                catch (ExecutionException ex) {
+                    Log.e(TAG, "Write failed", ex.getCause());
+                    return null;
+                }
+            }
+        }
+        finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void runWriter() {
+        ArrayList<Request<?>> group = new ArrayList<Request<?>>();
+        while (true) {
+            try {
+                Request<?> request = mQueue.take();
+                group.add(request);
+
+                final long deadline = SystemClock.uptimeMillis() + MAX_GROUP_DELAY_MS;
+                while (!request.flush && group.size() < MAX_GROUP_SIZE) {
+                    final long delay = deadline - SystemClock.uptimeMillis();
+                    request = delay > 0 ? mQueue.poll(delay, TimeUnit.MILLISECONDS) : mQueue.poll();
+                    if (request == null) {
+                        break;
+                    }
+                    group.add(request);
+                }
+            }
+            catch (InterruptedException ex) {
+                // Commit whatever has been collected.
+            }
+
+            if (!group.isEmpty()) {
+                commit(group);
+                group.clear();
+            }
+        }
+    }
+
+    private void commit(ArrayList<Request<?>> group) {
+        PhoneBookDatabase.Lease lease = mDatabase.acquire();
+        try {
+            commit(group, lease.get());
+        }
+        catch (SQLException ex) {
+            Log.e(TAG, "Could not open the database; " + group.size() + " writes failed", ex);
+            for (Request<?> request : group) {
+                request.error = ex;
+                request.future.run();
+            }
+        }
+        finally {
+            lease.release();
+        }
+    }
+
+    private void commit(ArrayList<Request<?>> group, PhoneBookDbAdapter db) {
+        if (!runGroup(group, db) && group.size() > 1) {
+            Log.w(TAG, "Group of " + group.size() + " writes failed; retrying one at a time");
+            ArrayList<Request<?>> single = new ArrayList<Request<?>>(1);
+            for (Request<?> request : group) {
+                single.add(request);
+                runGroup(single, db);
+                single.clear();
+            }
+        }
+
+        for (Request<?> request : group) {
+            request.future.run();
+        }
+    }
+
+    /**
+     * Run writes in one transaction. Returns false if a write threw, after
+     * recording the exception if the group has only one write.
+     */
+    private boolean runGroup(ArrayList<Request<?>> group, PhoneBookDbAdapter db) {
+        try {
+            db.beginGroup();
+            try {
+                for (Request<?> request : group) {
+                    request.run(db);
+                }
+                db.setGroupSuccessful();
+            }
+            finally {
+                db.endGroup();
+            }
+            return true;
+        }
+        catch (RuntimeException ex) {
+            if (group.size() == 1) {
+                group.get(0).error = ex;
+            }
+            return false;
+        }
+    }
+}
@@ -12,7 +12,6 @@ import android.app.ListActivity;
 import android.content.ContentResolver;
 import android.content.Intent;
 import android.database.ContentObserver;
-import android.database.Cursor;
 import android.os.Bundle;
 import android.os.Handler;
 import android.view.ContextMenu;
@@ -21,7 +20,6 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.widget.ListView;
-import android.widget.SimpleCursorAdapter;
 import android.widget.Toast;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 
@@ -36,7 +34,8 @@ public class IttiaPhoneBookActivity extends ListActivity {
     private static final int DELETE_ID = Menu.FIRST + 1;
     private static final int SYNC_ID = Menu.FIRST + 2;
 
-    private PhoneBookDbAdapter mDbHelper;
+    private ContactLoader mLoader;
+    private ContactListAdapter mContacts;
     private ContentObserver mContentObserver;
 
     /** Called when the activity is first created. */
@@ -45,29 +44,42 @@ public class IttiaPhoneBookActivity extends ListActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.phonebook_list);
 
-        // Connect to the database and fetch the contact list.
-        mDbHelper = new PhoneBookDbAdapter(this);
-        mDbHelper.open();
-        fillData();
+        // Connect to the database and fetch the contact list. Both happen on
+        // the loader thread, so the list fills in once the first page is read.
+        mLoader = new ContactLoader(PhoneBookDatabase.get(this).acquire());
+        mContacts = new ContactListAdapter(this, mLoader);
+        setListAdapter(mContacts);
 
         // Add a context menu to the list.
         registerForContextMenu(getListView());
 
-        // When the sync provider changes the database content, update the
-        // list and display a short message. This observer is called even if
-        // the sync is scheduled in the background, but only while this
-        // activity is active.
+        // Typing while the list has focus searches contact names by prefix.
+        getListView().setTextFilterEnabled(true);
+
+        // Sync all accounts periodically and after local edits.
+        SyncScheduler.get(this);
+
+        // When the sync provider changes the database content, display a
+        // short message. The list itself is updated from ContactChangeFeed.
+        // This observer is called even if the sync is scheduled in the
+        // background, but only while this activity is active.
         mContentObserver = new ContentObserver(new Handler()) {
             @Override
             public void onChange(boolean selfChange) {
                 if (!selfChange) {
-                    fillData();
                     Toast.makeText(IttiaPhoneBookActivity.this, R.string.message_sync_complete, Toast.LENGTH_SHORT).show();
                 }
             }
         };
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mContacts.close();
+        mLoader.close();
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
@@ -80,6 +92,9 @@ public class IttiaPhoneBookActivity extends ListActivity {
         super.onPause();
         // Always unregister content observers when the activity is paused.
         getContentResolver().unregisterContentObserver(mContentObserver);
+
+        // Start committing queued deletes before the process can be killed.
+        ContactWriter.get(this).flush();
     }
 
     @Override
@@ -124,10 +139,14 @@ public class IttiaPhoneBookActivity extends ListActivity {
     public boolean onContextItemSelected(MenuItem item) {
         switch(item.getItemId()) {
             case DELETE_ID:
-                // Delete the contact and refresh the list.
-                AdapterContextMenuInfo info = (AdapterContextMenuInfo) item.getMenuInfo();
-                mDbHelper.deleteContact(info.id);
-                fillData();
+                // Delete the contact. The list is updated from ContactChangeFeed.
+                final AdapterContextMenuInfo info = (AdapterContextMenuInfo) item.getMenuInfo();
+                ContactWriter.get(this).submit(new ContactWriter.Write<Boolean>() {
+                    @Override
+                    public Boolean run(PhoneBookDbAdapter db) {
+                        return db.deleteContact(info.id);
+                    }
+                });
                 return true;
         }
         return super.onContextItemSelected(item);
@@ -148,27 +167,6 @@ public class IttiaPhoneBookActivity extends ListActivity {
         startActivityForResult(i, ACTIVITY_EDIT);
     }
 
-    @Override
-    protected void onActivityResult(int requestCode, int resultCode, Intent intent) {
-        super.onActivityResult(requestCode, resultCode, intent);
-        // Refresh the list when the ContactEdit activity is closed.
-        fillData();
-    }
-
-    private void fillData() {
-        // Bind the contacts table to the list view.
-        Cursor c = mDbHelper.fetchAllContacts();
-        startManagingCursor(c);
-
-        String[] from = new String[] { PhoneBookDbAdapter.KEY_NAME };
-
-        int[] to = new int[] { R.id.contact_name };
-
-        SimpleCursorAdapter contacts =
-                new SimpleCursorAdapter(this, R.layout.contacts_row, c, from, to);
-        setListAdapter(contacts);
-    }
-
     /** The account type used to synchronize. This should match the accountType
      * attribute in res/xml/syncadapter.xml and res/xml/authenticator.xml. */
     public static final String ACCOUNT_TYPE = "com.example.android.ittiadb.phonebook";
@@ -209,6 +207,7 @@ public class IttiaPhoneBookActivity extends ListActivity {
                                             bundle.getString(AccountManager.KEY_ACCOUNT_NAME),
                                             bundle.getString(AccountManager.KEY_ACCOUNT_TYPE));
                                     ContentResolver.requestSync(account, SyncContentProvider.AUTHORITY, settingsBundle);
+                                    SyncScheduler.get(IttiaPhoneBookActivity.this).scheduleAll();
                                 }
                             }
                             catch (OperationCanceledException e) {
@@ -212,6 +212,7 @@ public class LoginActivity extends AccountAuthenticatorActivity {
         mAccountManager.setUserData(account, IttiaDbSyncAdapter.KEY_USER_NAME, userName);
         mAccountManager.setUserData(account, IttiaDbSyncAdapter.KEY_PEER_ADDRESS, Integer.toString(peerAddress));
         mAccountManager.setUserData(account, IttiaDbSyncAdapter.KEY_PEER_URI, peerUri);
+        mAccountManager.setUserData(account, AuthTokenManager.KEY_TOKEN_ISSUED, Long.toString(System.currentTimeMillis()));
 
         // Set authenticator result.
         Bundle result = new Bundle();
@@ -0,0 +1,177 @@
+package com.example.android.ittiadb.phonebook;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A ContactStore kept in memory, using only the Java class library.
+ *
+ * It serves as a reference for the behavior of PhoneBookDbAdapter and as a
+ * baseline when measuring it on a desktop JVM. Contacts are indexed by row
+ * ID and by (name, _id), like the contact table and its by_name index.
+ * Pictures are stored once per distinct content with a reference count,
+ * like PictureStore. Names are ordered by String.compareTo(), which can
+ * differ from the database collation for non-ASCII names. Nothing is
+ * replicated and nothing is reported to ContactChangeFeed.
+ */
+public class MemoryContactStore implements ContactStore {
+    private static class Row {
+        final long rowId;
+        String name;
+        Long ringId;
+        Picture picture;
+
+        Row(long rowId) {
+            this.rowId = rowId;
+        }
+    }
+
+    private static class Picture {
+        final byte[] data;
+        final String key;
+        int refCount;
+
+        Picture(byte[] data, String key) {
+            this.data = data;
+            this.key = key;
+        }
+    }
+
+    /** Key of the name index. */
+    private static class NameKey implements Comparable<NameKey> {
+        final String name;
+        final long rowId;
+
+        NameKey(String name, long rowId) {
+            this.name = name;
+            this.rowId = rowId;
+        }
+
+        @Override
+        public int compareTo(NameKey other) {
+            int c = name.compareTo(other.name);
+            if (c != 0) {
+                return c;
+            }
+            return rowId < other.rowId ? -1 : (rowId == other.rowId ? 0 : 1);
+        }
+    }
+
+    private final HashMap<Long, Row> mRows = new HashMap<Long, Row>();
+    private final TreeMap<NameKey, Row> mByName = new TreeMap<NameKey, Row>();
+    private final HashMap<ByteBuffer, Picture> mPictures = new HashMap<ByteBuffer, Picture>();
+    private long mNextRowId = 1;
+    private long mNextPictureKey = 1;
+
+    @Override
+    public synchronized long createContact(String name, Long ringId, byte[] picture) {
+        if (name == null) {
+            return -1;
+        }
+        Row row = new Row(mNextRowId++);
+        row.name = name;
+        row.ringId = ringId;
+        row.picture = acquire(picture);
+        mRows.put(row.rowId, row);
+        mByName.put(new NameKey(name, row.rowId), row);
+        return row.rowId;
+    }
+
+    @Override
+    public synchronized Contact readContact(long rowId) {
+        Row row = mRows.get(rowId);
+        if (row == null) {
+            return null;
+        }
+        return new Contact(row.name, row.ringId, row.picture != null ? row.picture.data.clone() : null);
+    }
+
+    @Override
+    public synchronized int scanContactsAfter(String name, long rowId, int limit, RowVisitor visitor) {
+        Map<NameKey, Row> rows = name != null ? mByName.tailMap(new NameKey(name, rowId), false) : mByName;
+        int count = 0;
+        for (Row row : rows.values()) {
+            if (count == limit) {
+                break;
+            }
+            visitor.onRow(row.rowId, row.name, row.picture != null ? row.picture.key : null);
+            ++count;
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized boolean updateContact(long rowId, int fields, String name, Long ringId, byte[] picture) {
+        if (fields == 0) {
+            return false;
+        }
+        Row row = mRows.get(rowId);
+        if (row == null) {
+            return false;
+        }
+
+        if ((fields & FIELD_NAME) != 0) {
+            if (name == null) {
+                return false;
+            }
+            mByName.remove(new NameKey(row.name, rowId));
+            row.name = name;
+            mByName.put(new NameKey(name, rowId), row);
+        }
+        if ((fields & FIELD_RING_ID) != 0) {
+            row.ringId = ringId;
+        }
+        if ((fields & FIELD_PICTURE) != 0) {
+            // Acquire first, in case the picture is unchanged.
+            Picture previous = row.picture;
+            row.picture = acquire(picture);
+            release(previous);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean deleteContact(long rowId) {
+        Row row = mRows.remove(rowId);
+        if (row == null) {
+            return false;
+        }
+        mByName.remove(new NameKey(row.name, rowId));
+        release(row.picture);
+        return true;
+    }
+
+    @Override
+    public synchronized int countContacts() {
+        return mRows.size();
+    }
+
+    /** Number of distinct pictures stored. */
+    public synchronized int countPictures() {
+        return mPictures.size();
+    }
+
+    private Picture acquire(byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        ByteBuffer content = ByteBuffer.wrap(data);
+        Picture picture = mPictures.get(content);
+        if (picture == null) {
+            // Copy, so that the caller cannot change a stored picture.
+            byte[] copy = data.clone();
+            picture = new Picture(copy, Long.toString(mNextPictureKey++));
+            mPictures.put(ByteBuffer.wrap(copy), picture);
+        }
+        ++picture.refCount;
+        return picture;
+    }
+
+    private void release(Picture picture) {
+        if (picture != null && --picture.refCount == 0) {
+            mPictures.remove(ByteBuffer.wrap(picture.data));
+        }
+    }
+}
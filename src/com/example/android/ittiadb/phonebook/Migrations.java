@@ -0,0 +1,208 @@
+package com.example.android.ittiadb.phonebook;
+
+import java.util.Map;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.ittiadb.IttiaDbDatabase;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Schema migrations that rewrite data in the background.
+ *
+ * DatabaseHelper.onUpgrade() makes only structural changes, such as new
+ * tables, columns and indexes, which are quick at any table size. A step
+ * that must also rewrite existing rows schedules a named Backfill, which
+ * is recorded in the backfill table. Once the database is open, a
+ * background thread runs pending backfills BATCH_SIZE rows at a time, in
+ * row ID order, on a lease of the shared connection. Each batch commits
+ * in one transaction together with the last row ID it processed, so an
+ * interrupted backfill resumes where it stopped the next time the process
+ * opens the database. The thread pauses between batches to let other
+ * writers in.
+ *
+ * Until a backfill finishes, the rows it has not reached yet still have
+ * their old form, so the code that reads them must accept both.
+ */
+class Migrations {
+    private static final String TAG = "Migrations";
+
+    static final String BACKFILL_TABLE = "backfill";
+
+    /** Number of rows rewritten in each transaction. */
+    static final int BATCH_SIZE = 500;
+
+    /** Pause between batches. */
+    static final long BATCH_PAUSE_MS = 20;
+
+    /** Rewrites rows in batches. */
+    interface Backfill {
+        /**
+         * Rewrite at most limit rows with a row ID above afterRowId, in row
+         * ID order, within the caller's transaction. Returns the largest row
+         * ID processed, or -1 if no rows remain.
+         */
+        long run(IttiaDbDatabase db, long afterRowId, int limit);
+    }
+
+    // Set while the backfill thread runs, and when backfills are requested
+    // while it runs, so that it checks for them again before it stops.
+    private static boolean sRunning;
+    private static boolean sRequested;
+
+    private Migrations() {
+    }
+
+    static void createTable(IttiaDbDatabase db) {
+        db.execSQL(
+            "create table backfill (" +
+            "  _id unsigned bigint generated by default as identity primary key," +
+            "  name varchar(40) not null," +
+            "  last_row_id bigint not null," +
+            "  done integer not null" +
+            ")");
+    }
+
+    /** Record a backfill to run after the upgrade. Called by onUpgrade(). */
+    static void schedule(IttiaDbDatabase db, String name) {
+        ContentValues values = new ContentValues();
+        values.put("name", name);
+        values.put("last_row_id", -1);
+        values.put("done", 0);
+        db.insert(BACKFILL_TABLE, null, values);
+    }
+
+    /** Returns true if a backfill has been scheduled and has not finished. */
+    static boolean isPending(IttiaDbDatabase db, String name) {
+        Cursor c = db.query(BACKFILL_TABLE, new String[] { "_id" },
+                "name = ? and done = 0", new String[] { name }, null, null, null);
+        try {
+            return c.moveToFirst();
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Run one batch of the oldest pending backfill in one transaction.
+     * Returns false if no backfill is pending.
+     */
+    static boolean runBatch(IttiaDbDatabase db, Map<String, Backfill> backfills, int batchSize) {
+        db.beginTransaction();
+        try {
+            Cursor c = db.query(false, BACKFILL_TABLE, new String[] { "_id", "name", "last_row_id" },
+                    "done = 0", null, null, null, "_id", "1");
+            long id;
+            String name;
+            long lastRowId;
+            try {
+                if (!c.moveToFirst()) {
+                    return false;
+                }
+                id = c.getLong(0);
+                name = c.getString(1);
+                lastRowId = c.getLong(2);
+            }
+            finally {
+                c.close();
+            }
+
+            Backfill backfill = backfills.get(name);
+            ContentValues values = new ContentValues();
+            if (backfill == null) {
+                Log.w(TAG, "Skipping unknown backfill " + name);
+                values.put("done", 1);
+            }
+            else {
+                final long rowId = backfill.run(db, lastRowId, batchSize);
+                if (rowId < 0) {
+                    Log.i(TAG, "Backfill " + name + " finished");
+                    values.put("done", 1);
+                }
+                else {
+                    values.put("last_row_id", rowId);
+                }
+            }
+            db.update(BACKFILL_TABLE, values, "_id = " + id, null);
+            db.setTransactionSuccessful();
+            return true;
+        }
+        finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Start running pending backfills on a background thread, unless the
+     * thread is running already.
+     */
+    static synchronized void startBackfills(final Context context) {
+        if (sRunning) {
+            sRequested = true;
+            return;
+        }
+        sRunning = true;
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runBackfills(context.getApplicationContext());
+            }
+        }, TAG).start();
+    }
+
+    private static void runBackfills(Context context) {
+        PhoneBookDatabase.Lease lease = PhoneBookDatabase.get(context).acquire();
+        final long startTime = SystemClock.elapsedRealtime();
+        int batches = 0;
+        boolean stopped = false;
+        try {
+            PhoneBookDbAdapter db = lease.get();
+            while (true) {
+                while (db.runBackfillBatch(BATCH_SIZE)) {
+                    ++batches;
+                    SystemClock.sleep(BATCH_PAUSE_MS);
+                }
+                synchronized (Migrations.class) {
+                    if (!sRequested) {
+                        sRunning = false;
+                        stopped = true;
+                        break;
+                    }
+                    sRequested = false;
+                }
+            }
+        }
+        catch (RuntimeException ex) {
+            // Progress is kept, so the next start continues from here.
+            Log.e(TAG, "Backfill failed", ex);
+        }
+        finally {
+            if (!stopped) {
+                // The open or a batch failed. Let the next start run again.
+                synchronized (Migrations.class) {
+                    sRunning = false;
+                    sRequested = false;
+                }
+            }
+            lease.release();
+        }
+
+        if (batches > 0) {
+            Log.i(TAG, "Ran " + batches + " backfill batches in " +
+                    (SystemClock.elapsedRealtime() - startTime) + " ms");
+
+            // Rows shown before they were rewritten may be out of date or
+            // out of place.
+            ContactChangeFeed.Changes changes = new ContactChangeFeed.Changes();
+            changes.otherRowsUpdated = true;
+            changes.orderChanged = true;
+            ContactChangeFeed.get().publish(changes);
+        }
+    }
+}
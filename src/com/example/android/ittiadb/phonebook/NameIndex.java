@@ -0,0 +1,269 @@
+package com.example.android.ittiadb.phonebook;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.ittiadb.IttiaDbDatabase;
+
+/**
+ * An index of the words of contact names, for finding contacts by any part
+ * of any word of their name.
+ *
+ * Names are folded to lower case without accents and split into words at
+ * characters that are not letters or digits. Every suffix of every word is
+ * stored in the name_fragment table with the contact's row ID. The suffix
+ * that is the whole word is marked as the start of a word, the others as
+ * infixes. A contact whose name contains a string is then found by a range
+ * scan of the fragments that start with it, without reading other names.
+ * A name of n characters has at most n fragments.
+ *
+ * The table is local to the device, like the sort keys it is kept with.
+ * PhoneBookDbAdapter writes a contact's fragments whenever it writes its
+ * sort key. See SortKeys.
+ */
+class NameIndex {
+    static final String FRAGMENT_TABLE = "name_fragment";
+
+    /** Column of search() results that holds the score of each contact. */
+    static final String KEY_SCORE = "score";
+
+    // Scores of one search term against the words of a name.
+    private static final int SCORE_INFIX = 1;
+    private static final int SCORE_WORD_PREFIX = 2;
+    private static final int SCORE_WORD = 3;
+
+    // Number of fragments read by each query of a search.
+    private static final int SCAN_PAGE_SIZE = 200;
+
+    // Scans one kind of fragment starting with a string, in (fragment, _id)
+    // order on the by_fragment index.
+    private static final String FRAGMENT_JOIN =
+            "name_fragment join contact_sort on name_fragment._id = contact_sort._id";
+    private static final String FRAGMENT_SELECTION =
+            "name_fragment.infix = ? and name_fragment.fragment >= ?";
+    private static final String FRAGMENT_END_SELECTION = " and name_fragment.fragment < ?";
+    private static final String AFTER_FRAGMENT_SELECTION =
+            " and (name_fragment.fragment > ? or name_fragment._id > ?)";
+    private static final String FRAGMENT_ORDER = "name_fragment.fragment, name_fragment._id";
+
+    /** A fragment of a name. */
+    static class Fragment {
+        final String text;
+        final boolean infix;
+
+        Fragment(String text, boolean infix) {
+            this.text = text;
+            this.infix = infix;
+        }
+    }
+
+    private static class Match {
+        final long id;
+        final String name;
+        final String sortKey;
+        final int score;
+
+        Match(long id, String name, String sortKey, int score) {
+            this.id = id;
+            this.name = name;
+            this.sortKey = sortKey;
+            this.score = score;
+        }
+    }
+
+    private NameIndex() {
+    }
+
+    static void createTable(IttiaDbDatabase db) {
+        db.execSQL(
+            "create table name_fragment (" +
+            "  fragment nvarchar(50) not null," +
+            "  infix integer not null," +
+            "  _id unsigned bigint not null" +
+            ")");
+        db.execSQL("create index by_fragment on name_fragment (infix, fragment, _id)");
+        db.execSQL("create index by_fragment_contact on name_fragment (_id)");
+    }
+
+    /** Returns a string in lower case without accents. */
+    static String fold(String s) {
+        String decomposed = Normalizer.normalize(s.toLowerCase(Locale.ROOT), Normalizer.Form.NFD);
+        StringBuilder folded = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); ++i) {
+            final char c = decomposed.charAt(i);
+            if (Character.getType(c) != Character.NON_SPACING_MARK) {
+                folded.append(c);
+            }
+        }
+        return folded.toString();
+    }
+
+    /** Returns the distinct words of a folded string, in order. */
+    static ArrayList<String> words(String folded) {
+        LinkedHashSet<String> words = new LinkedHashSet<String>();
+        int start = -1;
+        for (int i = 0; i <= folded.length(); ++i) {
+            if (i < folded.length() && Character.isLetterOrDigit(folded.charAt(i))) {
+                if (start < 0) {
+                    start = i;
+                }
+            }
+            else if (start >= 0) {
+                words.add(folded.substring(start, i));
+                start = -1;
+            }
+        }
+        return new ArrayList<String>(words);
+    }
+
+    /** Returns the distinct fragments stored for a name. */
+    static ArrayList<Fragment> fragments(String name) {
+        ArrayList<Fragment> fragments = new ArrayList<Fragment>();
+        Set<String> seen = new HashSet<String>();
+        for (String word : words(fold(name))) {
+            for (int i = 0; i < word.length(); ++i) {
+                if (Character.isLowSurrogate(word.charAt(i))) {
+                    continue;
+                }
+                final String text = word.substring(i);
+                if (seen.add((i > 0 ? '+' : '=') + text)) {
+                    fragments.add(new Fragment(text, i > 0));
+                }
+            }
+        }
+        return fragments;
+    }
+
+    /**
+     * Find contacts whose name contains every word of a query, anywhere in
+     * its words, and return at most limit of them with the columns _id,
+     * name, sort_key and score, best first.
+     *
+     * The longest query word is looked up in the index: first as the start
+     * of a word, where whole-word matches come first, then inside words.
+     * The other query words are checked against the name of each contact
+     * found, and the scan stops once limit contacts match them all. So the
+     * cost depends on the number of results wanted rather than the number
+     * of contacts. The contacts found are ranked by how well each query
+     * word matches, as a whole word, the start of a word or inside a word,
+     * and then in list order.
+     */
+    static Cursor search(IttiaDbDatabase db, String query, int limit) {
+        MatrixCursor result = new MatrixCursor(new String[] { PhoneBookDbAdapter.KEY_ROWID,
+                PhoneBookDbAdapter.KEY_NAME, PhoneBookDbAdapter.KEY_SORT_KEY, KEY_SCORE });
+        final ArrayList<String> terms = words(fold(query));
+        if (terms.isEmpty() || limit <= 0) {
+            return result;
+        }
+
+        String driver = terms.get(0);
+        for (String term : terms) {
+            if (term.length() > driver.length()) {
+                driver = term;
+            }
+        }
+        final String end = PhoneBookDbAdapter.prefixEnd(driver);
+
+        ArrayList<Match> matches = new ArrayList<Match>();
+        Set<Long> seen = new HashSet<Long>();
+        for (int infix = 0; infix <= 1 && matches.size() < limit; ++infix) {
+            String afterFragment = null;
+            long afterId = 0;
+            while (matches.size() < limit) {
+                StringBuilder selection = new StringBuilder(FRAGMENT_SELECTION);
+                ArrayList<String> selectionArgs = new ArrayList<String>();
+                selectionArgs.add(Integer.toString(infix));
+                selectionArgs.add(afterFragment != null ? afterFragment : driver);
+                if (end != null) {
+                    selection.append(FRAGMENT_END_SELECTION);
+                    selectionArgs.add(end);
+                }
+                if (afterFragment != null) {
+                    selection.append(AFTER_FRAGMENT_SELECTION);
+                    selectionArgs.add(afterFragment);
+                    selectionArgs.add(Long.toString(afterId));
+                }
+
+                Cursor c = db.query(false, FRAGMENT_JOIN, new String[] { "name_fragment.fragment",
+                        "name_fragment._id", "contact_sort.name", "contact_sort.sort_key" },
+                        selection.toString(), selectionArgs.toArray(new String[selectionArgs.size()]),
+                        null, null, FRAGMENT_ORDER, Integer.toString(SCAN_PAGE_SIZE));
+                int rows = 0;
+                try {
+                    while (c.moveToNext() && matches.size() < limit) {
+                        ++rows;
+                        afterFragment = c.getString(0);
+                        afterId = c.getLong(1);
+                        if (!seen.add(afterId)) {
+                            continue;
+                        }
+                        final int score = score(terms, words(fold(c.getString(2))));
+                        if (score > 0) {
+                            matches.add(new Match(afterId, c.getString(2), c.getString(3), score));
+                        }
+                    }
+                }
+                finally {
+                    c.close();
+                }
+                if (rows < SCAN_PAGE_SIZE) {
+                    break;
+                }
+            }
+        }
+
+        Collections.sort(matches, new Comparator<Match>() {
+            @Override
+            public int compare(Match m1, Match m2) {
+                if (m1.score != m2.score) {
+                    return m1.score > m2.score ? -1 : 1;
+                }
+                int result = m1.sortKey.compareTo(m2.sortKey);
+                if (result == 0) {
+                    result = m1.id < m2.id ? -1 : (m1.id == m2.id ? 0 : 1);
+                }
+                return result;
+            }
+        });
+        for (Match match : matches) {
+            result.addRow(new Object[] { match.id, match.name, match.sortKey, match.score });
+        }
+        return result;
+    }
+
+    /**
+     * Returns the sum of the best score of each term against the words of a
+     * name, or 0 if some term is not found in any word.
+     */
+    private static int score(ArrayList<String> terms, ArrayList<String> words) {
+        int total = 0;
+        for (String term : terms) {
+            int best = 0;
+            for (String word : words) {
+                if (word.equals(term)) {
+                    best = SCORE_WORD;
+                    break;
+                }
+                else if (word.startsWith(term)) {
+                    best = Math.max(best, SCORE_WORD_PREFIX);
+                }
+                else if (best == 0 && word.contains(term)) {
+                    best = SCORE_INFIX;
+                }
+            }
+            if (best == 0) {
+                return 0;
+            }
+            total += best;
+        }
+        return total;
+    }
+}
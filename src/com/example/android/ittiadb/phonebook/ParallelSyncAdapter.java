@@ -0,0 +1,209 @@
+package com.example.android.ittiadb.phonebook;
+
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.accounts.Account;
+import android.content.AbstractThreadedSyncAdapter;
+import android.content.ContentProviderClient;
+import android.content.Context;
+import android.content.SyncResult;
+import android.database.ittiadb.IttiaDbSyncAdapter;
+import android.os.Bundle;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * A sync adapter that syncs several accounts at the same time.
+ *
+ * The sync framework runs each account's sync on its own thread, because
+ * parallel syncs are allowed in res/xml/syncadapter.xml. Each account is
+ * synced by its own PhoneBookSyncAdapter, which replicates on a database
+ * connection of its own, so each peer has an independent replication
+ * session. The work after replication, which writes through
+ * PhoneBookDbAdapter, runs on the shared connection of PhoneBookDatabase,
+ * of which the session holds a lease. The session is opened on the first
+ * sync of the account and kept for syncs that follow soon after, such as
+ * a manual sync after a periodic one. It is closed once the account has
+ * not synced for SESSION_IDLE_CLOSE_MS, so accounts that sync rarely, or
+ * that were removed, hold no connection.
+ *
+ * At most MAX_PARALLEL_SYNCS accounts sync at once. Further syncs wait for
+ * a running one to finish, so the total time of a sync of all accounts
+ * approaches that of the slowest peer.
+ */
+public class ParallelSyncAdapter extends AbstractThreadedSyncAdapter {
+    private static final String TAG = "ParallelSyncAdapter";
+
+    /** Largest number of accounts synced at the same time. */
+    public static final int MAX_PARALLEL_SYNCS = 3;
+
+    /** Time without syncs after which an account's connection is closed. */
+    public static final long SESSION_IDLE_CLOSE_MS = 60 * 1000;
+
+    /** The connections and sync adapter of one account. */
+    private static class Session {
+        final Account account;
+        // Used only for replication.
+        final PhoneBookDbAdapter db;
+        final PhoneBookDatabase.Lease lease;
+        final IttiaDbSyncAdapter syncAdapter;
+        boolean busy;
+        ScheduledFuture<?> idleClose;
+
+        Session(Context context, Account account, PhoneBookDbAdapter db, PhoneBookDatabase.Lease lease) {
+            this.account = account;
+            this.db = db;
+            this.lease = lease;
+            this.syncAdapter = new PhoneBookSyncAdapter(context, lease.get(), db.getDatabase());
+        }
+
+        void close() {
+            db.close();
+            lease.release();
+        }
+    }
+
+    private final Semaphore mPermits = new Semaphore(MAX_PARALLEL_SYNCS, true);
+    private final HashMap<Account, Session> mSessions = new HashMap<Account, Session>();
+    private final ScheduledExecutorService mScheduler;
+
+    public ParallelSyncAdapter(Context context) {
+        super(context, true, true);
+        mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, TAG);
+            }
+        });
+    }
+
+    @Override
+    public void onPerformSync(Account account, Bundle extras, String authority,
+            ContentProviderClient provider, SyncResult syncResult) {
+        try {
+            mPermits.acquire();
+        }
+        catch (InterruptedException ex) {
+            // The sync was canceled while waiting.
+            return;
+        }
+
+        try {
+            Session session = acquireSession(account);
+            try {
+                session.syncAdapter.onPerformSync(account, extras, authority, provider, syncResult);
+            }
+            finally {
+                releaseSession(session);
+            }
+        }
+        finally {
+            mPermits.release();
+        }
+    }
+
+    /**
+     * Returns the session of an account, opening a connection for it if it
+     * has none, and keeps it open until releaseSession(). The framework
+     * runs at most one sync per account at a time, so a session is never
+     * used by two threads at once.
+     *
+     * The connection is opened without holding mSessions, so that the
+     * open, which may upgrade the schema, does not hold up the syncs of
+     * other accounts. If the account's session is opened by another
+     * thread meanwhile, the connection opened here is closed again.
+     */
+    private Session acquireSession(Account account) {
+        Session session = takeSession(account);
+        if (session != null) {
+            return session;
+        }
+
+        Log.d(TAG, "Opening a connection for " + account.name);
+        Session opened = openSession(account);
+        synchronized (mSessions) {
+            session = mSessions.get(account);
+            if (session == null) {
+                mSessions.put(account, opened);
+                opened.busy = true;
+                return opened;
+            }
+            markBusy(session);
+        }
+        opened.close();
+        return session;
+    }
+
+    private Session openSession(Account account) {
+        PhoneBookDatabase.Lease lease = PhoneBookDatabase.get(getContext()).acquire();
+        PhoneBookDbAdapter db = null;
+        try {
+            db = new PhoneBookDbAdapter(getContext()).open();
+            return new Session(getContext(), account, db, lease);
+        }
+        catch (RuntimeException ex) {
+            if (db != null) {
+                db.close();
+            }
+            lease.release();
+            throw ex;
+        }
+    }
+
+    /** Returns the open session of an account, marked busy, or null. */
+    private Session takeSession(Account account) {
+        synchronized (mSessions) {
+            Session session = mSessions.get(account);
+            if (session != null) {
+                markBusy(session);
+            }
+            return session;
+        }
+    }
+
+    // Called with mSessions held.
+    private static void markBusy(Session session) {
+        if (session.idleClose != null) {
+            session.idleClose.cancel(false);
+            session.idleClose = null;
+        }
+        session.busy = true;
+    }
+
+    /** End a sync of a session, scheduling it to close if it stays idle. */
+    private void releaseSession(final Session session) {
+        synchronized (mSessions) {
+            session.busy = false;
+            session.idleClose = mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    closeIfIdle(session);
+                }
+            }, SESSION_IDLE_CLOSE_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void closeIfIdle(Session session) {
+        synchronized (mSessions) {
+            if (session.busy || mSessions.get(session.account) != session) {
+                return;
+            }
+            mSessions.remove(session.account);
+        }
+
+        Log.d(TAG, "Closing the connection of " + session.account.name);
+        session.close();
+    }
+}
@@ -0,0 +1,242 @@
+package com.example.android.ittiadb.phonebook;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * The database connection shared by the components of the process.
+ *
+ * Components take a Lease with acquire() and give it back with
+ * Lease.release(). The first lease starts opening the database on a
+ * background thread, followed by a warm-up that reads the first page of
+ * the contact list, so that the pages and statements the list needs first
+ * are ready. acquire() never waits; Lease.get() waits only until the open
+ * has finished. The connection is closed once no lease has been held for
+ * IDLE_CLOSE_DELAY_MS, and opened again by the next acquire().
+ *
+ * All components of the process read and write through the shared
+ * adapter, whose groups are per thread. The only other connections are
+ * those that ParallelSyncAdapter replicates on, one per account, since
+ * each peer needs a replication session of its own.
+ */
+public class PhoneBookDatabase {
+    private static final String TAG = "PhoneBookDatabase";
+
+    /** Time without leases after which the connection is closed. */
+    public static final long IDLE_CLOSE_DELAY_MS = 60 * 1000;
+
+    // Number of list rows read by the warm-up.
+    private static final int WARM_UP_ROWS = 50;
+
+    /** A use of the shared connection. */
+    public class Lease {
+        private final Future<PhoneBookDbAdapter> mOpen;
+        private boolean mReleased;
+
+        private Lease(Future<PhoneBookDbAdapter> open) {
+            mOpen = open;
+        }
+
+        /**
+         * Returns the shared adapter, waiting until it is open. Throws
+         * SQLException if the database could not be opened.
+         */
+        public PhoneBookDbAdapter get() {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return mOpen.get();
+                    }
+                    catch (InterruptedException ex) {
+                        interrupted = true;
+                    }
+                    catch (ExecutionException ex) {
+                        if (ex.getCause() instanceof SQLException) {
+                            throw (SQLException) ex.getCause();
+                        }
+                        throw new SQLException("Could not open the database: " + ex.getCause());
+                    }
+                }
+            }
+            finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        /** End this use of the connection. Further calls do nothing. */
+        public void release() {
+            synchronized (PhoneBookDatabase.this) {
+                if (mReleased) {
+                    return;
+                }
+                mReleased = true;
+            }
+            PhoneBookDatabase.this.release();
+        }
+    }
+
+    private static PhoneBookDatabase sInstance;
+
+    private final Context mContext;
+    private final ScheduledExecutorService mExecutor;
+
+    private int mLeases;
+    // The open of the current connection, or null if it is closed.
+    private FutureTask<PhoneBookDbAdapter> mOpen;
+    private ScheduledFuture<?> mIdleClose;
+    // Locale that the sort keys were last checked against.
+    private volatile String mSortLocale;
+
+    public static synchronized PhoneBookDatabase get(Context context) {
+        if (sInstance == null) {
+            sInstance = new PhoneBookDatabase(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PhoneBookDatabase(Context context) {
+        mContext = context;
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, TAG);
+            }
+        });
+    }
+
+    /** Take a lease, starting to open the database if it is closed. */
+    public synchronized Lease acquire() {
+        ++mLeases;
+        if (mIdleClose != null) {
+            mIdleClose.cancel(false);
+            mIdleClose = null;
+        }
+        if (mOpen == null) {
+            mOpen = new FutureTask<PhoneBookDbAdapter>(new Callable<PhoneBookDbAdapter>() {
+                @Override
+                public PhoneBookDbAdapter call() {
+                    return open();
+                }
+            });
+            // The open runs after any close still in progress.
+            mExecutor.execute(mOpen);
+        }
+        else if (!SortKeys.getLocaleName().equals(mSortLocale)) {
+            // The locale changed while the connection was open.
+            final FutureTask<PhoneBookDbAdapter> open = mOpen;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        checkSortLocale(open.get());
+                    }
+                    catch (ExecutionException ex) {
+                        // The open failed.
+                    }
+                    catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        return new Lease(mOpen);
+    }
+
+    private synchronized void release() {
+        if (--mLeases == 0) {
+            final FutureTask<PhoneBookDbAdapter> open = mOpen;
+            mIdleClose = mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    closeIfIdle(open);
+                }
+            }, IDLE_CLOSE_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private PhoneBookDbAdapter open() {
+        final long startTime = SystemClock.elapsedRealtime();
+        PhoneBookDbAdapter db = new PhoneBookDbAdapter(mContext).open();
+        final long openTime = SystemClock.elapsedRealtime();
+
+        try {
+            Cursor c = db.fetchContactsAfter(null, -1, WARM_UP_ROWS);
+            try {
+                while (c.moveToNext()) {
+                }
+            }
+            finally {
+                c.close();
+            }
+            db.countContacts();
+        }
+        catch (RuntimeException ex) {
+            // The connection is usable without a warm-up.
+            Log.w(TAG, "Warm-up failed", ex);
+        }
+
+        Log.d(TAG, "Opened in " + (openTime - startTime) + " ms, warmed up in " +
+                (SystemClock.elapsedRealtime() - openTime) + " ms");
+
+        // Rebuild the sort keys if the locale has changed, and finish any
+        // schema upgrade that the open started.
+        checkSortLocale(db);
+        return db;
+    }
+
+    private void checkSortLocale(PhoneBookDbAdapter db) {
+        mSortLocale = SortKeys.getLocaleName();
+        try {
+            db.checkSortLocale();
+        }
+        catch (RuntimeException ex) {
+            Log.w(TAG, "Could not check the sort locale", ex);
+        }
+        Migrations.startBackfills(mContext);
+    }
+
+    private void closeIfIdle(FutureTask<PhoneBookDbAdapter> open) {
+        synchronized (this) {
+            if (mLeases > 0 || mOpen != open) {
+                return;
+            }
+            mOpen = null;
+            mIdleClose = null;
+        }
+
+        try {
+            open.get().close();
+            Log.d(TAG, "Closed after " + IDLE_CLOSE_DELAY_MS + " ms without leases");
+        }
+        catch (ExecutionException ex) {
+            // The open failed, so there is nothing to close. The next
+            // acquire() tries again.
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,28 +1,136 @@
 package com.example.android.ittiadb.phonebook;
 
+import java.io.ByteArrayOutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.ittiadb.IttiaDbDatabase;
 import android.database.ittiadb.IttiaDbOpenHelper;
+import android.database.ittiadb.IttiaDbStatement;
 import android.database.ittiadb.IttiaDbSyncAdapter;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.util.Log;
 
-public class PhoneBookDbAdapter {
+public class PhoneBookDbAdapter implements ContactStore {
     public static final String KEY_ROWID = "_id";
     public static final String KEY_CONTACT_ID = "contact_id";
     public static final String KEY_NAME = "name";
     public static final String KEY_RING_ID = "ring_id";
     public static final String KEY_PICTURE_NAME = "picture_name";
     public static final String KEY_PICTURE = "picture";
+    public static final String KEY_THUMBNAIL = "thumbnail";
+    public static final String KEY_PICTURE_HASH = "picture_hash";
+    public static final String KEY_SORT_KEY = "sort_key";
+
+    // Pictures are stored once per distinct image in the picture table and
+    // referenced from contacts by hash. See PictureStore.
+    private static final String CONTACT_PICTURE_JOIN =
+            "contact left outer join picture on contact.picture_hash = picture.hash";
+
+    // The list is in the order of the sort keys in the contact_sort table,
+    // which is local to the device because each device sorts for its own
+    // locale. See SortKeys. While the keys are being written, the list is in
+    // name order instead; see isListInNameOrder().
+    private static final String LIST_JOIN =
+            "contact_sort join contact on contact_sort._id = contact._id " +
+            "left outer join picture on contact.picture_hash = picture.hash";
+
+    // List rows only need the name and a small image. Full-size pictures are
+    // read only when a single contact is fetched.
+    private static final String[] LIST_PROJECTION = new String[] {
+        "contact._id as " + KEY_ROWID, "contact.name as " + KEY_NAME, KEY_PICTURE_HASH,
+        "picture.thumbnail as " + KEY_THUMBNAIL, "contact_sort.sort_key as " + KEY_SORT_KEY };
+    // Lists in name order, read from the by_name index without contact_sort,
+    // so that contacts without a sort key are listed too. The name stands in
+    // for the sort key.
+    private static final String[] NAME_LIST_PROJECTION = new String[] {
+        "contact._id as " + KEY_ROWID, "contact.name as " + KEY_NAME, KEY_PICTURE_HASH,
+        "picture.thumbnail as " + KEY_THUMBNAIL, "contact.name as " + KEY_SORT_KEY };
+    private static final String[] DETAIL_PROJECTION = new String[] {
+        "contact._id as " + KEY_ROWID, KEY_NAME, KEY_RING_ID,
+        "picture.picture as " + KEY_PICTURE };
+
+    // Statements on hot paths use fixed SQL text with bound parameters, so
+    // each one is compiled once per connection by mStatements.
+    private static final String INSERT_CONTACT_SQL =
+            "insert into contact (name, ring_id, picture_hash) values (?, ?, ?)";
+    private static final String DELETE_CONTACT_SQL =
+            "delete from contact where _id = ?";
+    private static final String ROWID_SELECTION = KEY_ROWID + " = ?";
+    private static final String INSERT_SORT_KEY_SQL =
+            "insert into contact_sort (_id, name, sort_key) values (?, ?, ?)";
+    private static final String UPDATE_SORT_KEY_SQL =
+            "update contact_sort set name = ?, sort_key = ? where _id = ?";
+    private static final String DELETE_SORT_KEY_SQL =
+            "delete from contact_sort where _id = ?";
+    private static final String ADD_TO_SECTION_SQL =
+            "update contact_section set contacts = contacts + ? where section = ?";
+    private static final String INSERT_SECTION_SQL =
+            "insert into contact_section (section, contacts) values (?, ?)";
+    private static final String INSERT_FRAGMENT_SQL =
+            "insert into name_fragment (fragment, infix, _id) values (?, ?, ?)";
+    private static final String DELETE_FRAGMENTS_SQL =
+            "delete from name_fragment where _id = ?";
+
+    // Selects keys after (name, _id). The leading "name >= ?" term keeps the
+    // scan on the by_name index.
+    private static final String AFTER_KEY_SELECTION =
+            KEY_NAME + " >= ? and (" + KEY_NAME + " > ? or " + KEY_ROWID + " > ?)";
+    private static final String CONTACT_ROWID_SELECTION = "contact." + KEY_ROWID + " = ?";
+
+    // Selects list keys after, or up to, (sort_key, _id), scanning the
+    // by_sort_key index.
+    private static final String AFTER_SORT_KEY_SELECTION =
+            "contact_sort.sort_key >= ? and (contact_sort.sort_key > ? or contact_sort._id > ?)";
+    private static final String UP_TO_SORT_KEY_SELECTION =
+            "contact_sort.sort_key <= ? and (contact_sort.sort_key < ? or contact_sort._id <= ?)";
+    private static final String LIST_ORDER = "contact_sort.sort_key, contact_sort._id";
+
+    // The same for (name, _id) keys, scanning the by_name index.
+    private static final String AFTER_NAME_SELECTION =
+            "contact.name >= ? and (contact.name > ? or contact._id > ?)";
+    private static final String UP_TO_NAME_SELECTION =
+            "contact.name <= ? and (contact.name < ? or contact._id <= ?)";
+    private static final String NAME_LIST_ORDER = "contact.name, contact._id";
+
+    // Columns passed to ContactStore.RowVisitor.
+    private static final String[] SCAN_COLUMNS = new String[] { KEY_ROWID, KEY_NAME, KEY_PICTURE_HASH };
 
     public static final String TAG = "PhoneBookDbAdapter";
     private DatabaseHelper mDbHelper;
     private IttiaDbDatabase mDb;
+    private StatementCache mStatements;
+
+    /** The group that a thread is writing in. See beginGroup(). */
+    private static class Group {
+        // Changes made in the group, published when it commits.
+        final ArrayList<ContactChangeFeed.Changes> changes = new ArrayList<ContactChangeFeed.Changes>();
+        // Pictures to keep in PictureCache when it commits, by row ID.
+        final ArrayList<Long> pictureRowIds = new ArrayList<Long>();
+        final ArrayList<byte[]> pictures = new ArrayList<byte[]>();
+        int depth;
+        boolean successful;
+        boolean failed;
+    }
+
+    // The adapter is shared by the threads of the process, and a
+    // transaction belongs to the thread that began it, so each thread has
+    // its own group.
+    private final ThreadLocal<Group> mGroup = new ThreadLocal<Group>();
 
     private static final String DATABASE_NAME = "phone_book.db";
-    private static final int DATABASE_VERSION = 1;
-    private static final String CONTACT_TABLE = "contact";
+    private static final int DATABASE_VERSION = 13;
+    static final String CONTACT_TABLE = "contact";
 
     // The Android emulator maps 10.0.2.2 to the host's 127.0.0.1 adapter.
     // When deploying to an actual device, replace it with the host's network
@@ -45,22 +153,712 @@ public class PhoneBookDbAdapter {
                 "  contact_id unsigned bigint null constraint rep_key unique," +
                 "  name nvarchar(50) not null," +
                 "  ring_id integer," +
-                "  picture blob" +
+                "  picture_hash varchar(40)," +
+                "  picture blob," +
+                "  thumbnail blob" +
                 ")");
             db.execSQL("create index by_name on contact (name)");
+            db.execSQL("create index by_picture on contact (picture_hash)");
 
             // Replicate the contact table in and out
             IttiaDbDatabase.ReplicationTable contactRep = db.getReplicationTable("contact");
             contactRep.replicationMode = IttiaDbDatabase.ReplicationMode.INOUT;
             contactRep.replicationIndex = "rep_key";
             contactRep.apply();
+
+            PictureStore.createTables(db);
+            SyncMetrics.createTable(db);
+            Migrations.createTable(db);
+            createSortTables(db);
+            createSectionTable(db);
+            NameIndex.createTable(db);
+            PhoneNumbers.createTable(db);
+            ContactChangeLog.createTable(db);
+        }
+
+        private void createSortTables(IttiaDbDatabase db) {
+            db.execSQL(
+                "create table contact_sort (" +
+                "  _id unsigned bigint not null primary key," +
+                "  name nvarchar(50) not null," +
+                "  sort_key varchar(" + SortKeys.MAX_LENGTH + ") not null" +
+                ")");
+            db.execSQL("create index by_sort_key on contact_sort (sort_key, _id)");
+            createSortNameIndex(db);
+
+            // The locale of the sort keys.
+            db.execSQL("create table sort_locale (locale varchar(40) not null)");
+            ContentValues values = new ContentValues();
+            values.put("locale", SortKeys.getLocaleName());
+            db.insert(SORT_LOCALE_TABLE, null, values);
         }
 
+        private void createSortNameIndex(IttiaDbDatabase db) {
+            // Finds the keys of contacts deleted by peers. See ContactChangeLog.
+            db.execSQL("create index by_sort_name on contact_sort (name)");
+        }
+
+        private void createSectionTable(IttiaDbDatabase db) {
+            // The number of contacts in each alphabet section of the list.
+            // Like the sort keys, it is local to the device.
+            db.execSQL(
+                "create table contact_section (" +
+                "  section nvarchar(4) not null primary key," +
+                "  contacts bigint not null" +
+                ")");
+        }
+
+        /**
+         * Make the structural changes of each version since oldVersion.
+         * Rewriting existing rows is left to backfills scheduled here and
+         * run in the background by Migrations, so that opening the
+         * database takes the same time at any table size.
+         */
         @Override
         public void onUpgrade(IttiaDbDatabase db, int oldVersion, int newVersion) {
+            if (oldVersion < 5) {
+                // Version 5 tracks backfills. It is created first so that
+                // the steps below can schedule theirs.
+                Migrations.createTable(db);
+            }
+            if (oldVersion < 2) {
+                // Version 2 stored a list-sized copy of each picture. The
+                // column is no longer read, so it is not filled.
+                db.execSQL("alter table contact add thumbnail blob");
+            }
+            if (oldVersion < 3) {
+                // Version 3 moves pictures into the picture table, storing
+                // each distinct picture once. The old columns are cleared
+                // rather than dropped.
+                PictureStore.createTables(db);
+                db.execSQL("alter table contact add picture_hash varchar(40)");
+                db.execSQL("create index by_picture on contact (picture_hash)");
+                Migrations.schedule(db, BACKFILL_PICTURES);
+            }
+            if (oldVersion < 4) {
+                // Version 4 records metrics of each sync run.
+                SyncMetrics.createTable(db);
+            }
+            if (oldVersion < 6) {
+                // Version 6 lists contacts in the order of sort keys. Until
+                // every contact has a key, the list is in name order.
+                createSortTables(db);
+                Migrations.schedule(db, BACKFILL_SORT_KEYS);
+            }
+            if (oldVersion < 7) {
+                // Version 7 counts the contacts in each alphabet section.
+                // Until the count is made, the list has no section index.
+                createSectionTable(db);
+                Migrations.schedule(db, BACKFILL_SECTIONS);
+            }
+            if (oldVersion < 8) {
+                // Version 8 indexes the words of names for searchNames().
+                // Until a contact is indexed, it is not found.
+                NameIndex.createTable(db);
+                Migrations.schedule(db, BACKFILL_NAMES);
+            }
+            if (oldVersion < 9) {
+                // Version 9 stores phone numbers.
+                PhoneNumbers.createTable(db);
+            }
+            if (oldVersion < 10) {
+                // Databases created at versions 3 to 9 have no picture
+                // columns, which peers of version 2 and older still write.
+                // Version 10 adds them, so that all databases have the same
+                // contact table as their peers.
+                if (!hasColumn(db, CONTACT_TABLE, KEY_PICTURE)) {
+                    db.execSQL("alter table contact add picture blob");
+                }
+                if (!hasColumn(db, CONTACT_TABLE, KEY_THUMBNAIL)) {
+                    db.execSQL("alter table contact add thumbnail blob");
+                }
+            }
+            if (oldVersion < 11) {
+                // Version 11 logs updates and deletes for peers, so that
+                // sync updates the sort keys of only the contacts it
+                // changed. Until version 10, every sync compared all keys,
+                // so there are no earlier changes to catch up with. Sort
+                // tables created above already have the new index.
+                ContactChangeLog.createTable(db);
+                if (oldVersion >= 6) {
+                    createSortNameIndex(db);
+                }
+            }
+            if (oldVersion < 12) {
+                // Version 12 refers to the contact of a number by its
+                // replication key instead of its row ID, which differs
+                // between peers. Phone tables created above already do.
+                if (oldVersion >= 9) {
+                    PhoneNumbers.upgradeTable(db);
+                }
+            }
+            if (oldVersion < 13) {
+                // Version 13 keeps the numbers of contacts without a
+                // replication key out of the replicated phone table, so
+                // that peers do not receive them without their contact.
+                // Tables created or upgraded above already do.
+                if (oldVersion >= 12) {
+                    PhoneNumbers.upgradePendingTable(db);
+                }
+            }
+        }
+
+        private static boolean hasColumn(IttiaDbDatabase db, String table, String column) {
+            try {
+                db.query(false, table, new String[] { column }, null, null, null, null, null, "1").close();
+                return true;
+            }
+            catch (SQLException ex) {
+                return false;
+            }
+        }
+    }
+
+    // Backfills, by the name under which onUpgrade() schedules them.
+    private static final String BACKFILL_PICTURES = "pictures";
+    private static final String BACKFILL_SORT_KEYS = "sort_keys";
+    private static final String BACKFILL_SECTIONS = "sections";
+    private static final String BACKFILL_NAMES = "names";
+    private static final String BACKFILL_SORT_KEY_CHECK = "sort_key_check";
+    private static final String BACKFILL_SORT_KEY_ORPHANS = "sort_key_orphans";
+
+    private static final String SORT_TABLE = "contact_sort";
+    private static final String SORT_LOCALE_TABLE = "sort_locale";
+    private static final String SECTION_TABLE = "contact_section";
+
+    // Contacts with a key, and the name the key was made from, or null if
+    // there is no key yet.
+    private static final String CONTACT_SORT_JOIN =
+            "contact left outer join contact_sort on contact._id = contact_sort._id";
+    // Keys, and their contact, or null if it was deleted.
+    private static final String SORT_CONTACT_JOIN =
+            "contact_sort left outer join contact on contact_sort._id = contact._id";
+    private static final String[] CONTACT_SORT_COLUMNS =
+            new String[] { "contact._id", "contact.name", "contact_sort.name" };
+
+    private Map<String, Migrations.Backfill> getBackfills() {
+        final int thumbnailSize = getThumbnailSize();
+        Map<String, Migrations.Backfill> backfills = new HashMap<String, Migrations.Backfill>();
+
+        // Move pictures of contacts from the contact table to the picture
+        // table. Until it reaches a contact, its picture is not shown.
+        backfills.put(BACKFILL_PICTURES, new Migrations.Backfill() {
+            @Override
+            public long run(IttiaDbDatabase db, long afterRowId, int limit) {
+                return convertLegacyPictures(db, afterRowId, limit, thumbnailSize);
+            }
+        });
+
+        // Write the sort key of every contact for the current locale.
+        backfills.put(BACKFILL_SORT_KEYS, new Migrations.Backfill() {
+            @Override
+            public long run(IttiaDbDatabase db, long afterRowId, int limit) {
+                Cursor c = db.query(false, CONTACT_SORT_JOIN, CONTACT_SORT_COLUMNS,
+                        "contact._id > ?", new String[] { Long.toString(afterRowId) },
+                        null, null, "contact._id", Integer.toString(limit));
+                try {
+                    long rowId = -1;
+                    synchronized (mStatements) {
+                        while (c.moveToNext()) {
+                            rowId = c.getLong(0);
+                            putSortKey(rowId, c.getString(1), c.getString(2));
+                        }
+                    }
+                    return rowId;
+                }
+                finally {
+                    c.close();
+                }
+            }
+        });
+
+        // Write the keys that are missing or were made from another name than
+        // the contact's. Scheduled when a sync may have missed changes, in
+        // which case most keys are up to date and are only read.
+        backfills.put(BACKFILL_SORT_KEY_CHECK, new Migrations.Backfill() {
+            @Override
+            public long run(IttiaDbDatabase db, long afterRowId, int limit) {
+                Cursor c = db.query(false, CONTACT_SORT_JOIN, CONTACT_SORT_COLUMNS,
+                        "contact._id > ?", new String[] { Long.toString(afterRowId) },
+                        null, null, "contact._id", Integer.toString(limit));
+                try {
+                    long rowId = -1;
+                    synchronized (mStatements) {
+                        while (c.moveToNext()) {
+                            rowId = c.getLong(0);
+                            if (!c.getString(1).equals(c.getString(2))) {
+                                putSortKey(rowId, c.getString(1), c.getString(2));
+                            }
+                        }
+                    }
+                    return rowId;
+                }
+                finally {
+                    c.close();
+                }
+            }
+        });
+
+        // Drop the keys of contacts that no longer exist. Scheduled with
+        // BACKFILL_SORT_KEY_CHECK.
+        backfills.put(BACKFILL_SORT_KEY_ORPHANS, new Migrations.Backfill() {
+            @Override
+            public long run(IttiaDbDatabase db, long afterRowId, int limit) {
+                Cursor c = db.query(false, SORT_CONTACT_JOIN,
+                        new String[] { "contact_sort._id", "contact_sort.name", "contact._id" },
+                        "contact_sort._id > ?", new String[] { Long.toString(afterRowId) },
+                        null, null, "contact_sort._id", Integer.toString(limit));
+                try {
+                    long rowId = -1;
+                    synchronized (mStatements) {
+                        while (c.moveToNext()) {
+                            rowId = c.getLong(0);
+                            if (c.isNull(2)) {
+                                deleteSortKey(rowId, c.getString(1));
+                            }
+                        }
+                    }
+                    return rowId;
+                }
+                finally {
+                    c.close();
+                }
+            }
+        });
+
+        // Count the contacts in each alphabet section again, after the
+        // upgrade that added the counts or a change of locale that moved
+        // letters between sections. The count is made in a single batch,
+        // because a contact written between two batches could be counted
+        // twice.
+        backfills.put(BACKFILL_SECTIONS, new Migrations.Backfill() {
+            @Override
+            public long run(IttiaDbDatabase db, long afterRowId, int limit) {
+                if (afterRowId >= 0) {
+                    return -1;
+                }
+
+                Map<String, Long> counts = new HashMap<String, Long>();
+                Cursor c = db.query(SORT_TABLE, new String[] { KEY_NAME }, null, null, null, null, null);
+                try {
+                    while (c.moveToNext()) {
+                        final String section = SortKeys.getSection(c.getString(0));
+                        final Long count = counts.get(section);
+                        counts.put(section, count == null ? 1 : count + 1);
+                    }
+                }
+                finally {
+                    c.close();
+                }
+
+                db.delete(SECTION_TABLE, null, null);
+                for (Map.Entry<String, Long> entry : counts.entrySet()) {
+                    ContentValues values = new ContentValues();
+                    values.put("section", entry.getKey());
+                    values.put("contacts", entry.getValue());
+                    db.insert(SECTION_TABLE, null, values);
+                }
+                return 0;
+            }
+        });
+
+        // Index the words of the name of every contact.
+        backfills.put(BACKFILL_NAMES, new Migrations.Backfill() {
+            @Override
+            public long run(IttiaDbDatabase db, long afterRowId, int limit) {
+                Cursor c = db.query(false, CONTACT_TABLE, new String[] { KEY_ROWID, KEY_NAME },
+                        KEY_ROWID + " > ?", new String[] { Long.toString(afterRowId) },
+                        null, null, KEY_ROWID, Integer.toString(limit));
+                try {
+                    long rowId = -1;
+                    synchronized (mStatements) {
+                        while (c.moveToNext()) {
+                            rowId = c.getLong(0);
+                            putNameFragments(rowId, c.getString(1));
+                        }
+                    }
+                    return rowId;
+                }
+                finally {
+                    c.close();
+                }
+            }
+        });
+        return backfills;
+    }
+
+    /**
+     * Move the pictures that peers of version 2 and older wrote to the
+     * picture column of contacts with a row ID above afterRowId into the
+     * picture table, at most limit of them if limit is positive, in row ID
+     * order. The picture column is cleared, so each picture is moved once.
+     * Returns the largest row ID processed, or -1 if there was none.
+     */
+    private static long convertLegacyPictures(IttiaDbDatabase db, long afterRowId, int limit,
+            int thumbnailSize) {
+        Cursor c = db.query(false, CONTACT_TABLE, new String[] { KEY_ROWID, KEY_PICTURE, KEY_PICTURE_HASH },
+                KEY_ROWID + " > ? and " + KEY_PICTURE + " is not null",
+                new String[] { Long.toString(afterRowId) }, null, null, KEY_ROWID,
+                limit > 0 ? Integer.toString(limit) : null);
+        try {
+            long rowId = -1;
+            while (c.moveToNext()) {
+                rowId = c.getLong(0);
+                ContentValues args = new ContentValues();
+                args.put(KEY_PICTURE_HASH, PictureStore.acquire(db, c.getBlob(1), thumbnailSize));
+                args.putNull(KEY_PICTURE);
+                args.putNull(KEY_THUMBNAIL);
+                db.update(CONTACT_TABLE, args, KEY_ROWID + "=" + rowId, null);
+                PictureStore.release(db, c.getString(2));
+            }
+            return rowId;
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Move the pictures that replication wrote in the format of version 2
+     * and older into the picture table. Pictures of contacts inserted with
+     * a row ID above afterRowId are moved now. Older contacts that a peer
+     * may have updated are checked by a background pass of
+     * BACKFILL_PICTURES, which is scheduled unless one is pending already.
+     * Called after each sync run.
+     */
+    void convertLegacyPictures(long afterRowId) {
+        mDb.beginTransaction();
+        try {
+            convertLegacyPictures(mDb, afterRowId, 0, getThumbnailSize());
+            if (!Migrations.isPending(mDb, BACKFILL_PICTURES)) {
+                Migrations.schedule(mDb, BACKFILL_PICTURES);
+            }
+            mDb.setTransactionSuccessful();
+        }
+        finally {
+            mDb.endTransaction();
+        }
+        Migrations.startBackfills(mCtx);
+    }
+
+    /**
+     * Write the sort key of a contact, count it in its alphabet section and
+     * index the words of its name if they changed. previousName is the name
+     * of the contact's current key, or null if it is known to have none.
+     * The caller must hold the lock of mStatements.
+     */
+    private void putSortKey(long rowId, String name, String previousName) {
+        final String sortKey = SortKeys.get(name);
+        if (!name.equals(previousName)) {
+            putNameFragments(rowId, name);
+        }
+        if (previousName != null) {
+            IttiaDbStatement update = mStatements.get(UPDATE_SORT_KEY_SQL);
+            update.bindString(1, name);
+            update.bindString(2, sortKey);
+            update.bindLong(3, rowId);
+            if (update.executeUpdateDelete() > 0) {
+                final String previousSection = SortKeys.getSection(previousName);
+                final String section = SortKeys.getSection(name);
+                if (!section.equals(previousSection)) {
+                    addToSection(previousSection, -1);
+                    addToSection(section, 1);
+                }
+                return;
+            }
+        }
+        IttiaDbStatement insert = mStatements.get(INSERT_SORT_KEY_SQL);
+        insert.bindLong(1, rowId);
+        insert.bindString(2, name);
+        insert.bindString(3, sortKey);
+        insert.executeInsert();
+        addToSection(SortKeys.getSection(name), 1);
+    }
+
+    /**
+     * Drop the sort key and the name index entries of a contact, whose key
+     * was made from name, and take it out of its alphabet section. The
+     * caller must hold the lock of mStatements.
+     */
+    private void deleteSortKey(long rowId, String name) {
+        IttiaDbStatement delete = mStatements.get(DELETE_FRAGMENTS_SQL);
+        delete.bindLong(1, rowId);
+        delete.executeUpdateDelete();
+
+        delete = mStatements.get(DELETE_SORT_KEY_SQL);
+        delete.bindLong(1, rowId);
+        if (delete.executeUpdateDelete() > 0) {
+            addToSection(SortKeys.getSection(name), -1);
+        }
+    }
+
+    /**
+     * Replace the name index entries of a contact with those of name. See
+     * NameIndex. The caller must hold the lock of mStatements.
+     */
+    private void putNameFragments(long rowId, String name) {
+        IttiaDbStatement delete = mStatements.get(DELETE_FRAGMENTS_SQL);
+        delete.bindLong(1, rowId);
+        delete.executeUpdateDelete();
+
+        IttiaDbStatement insert = mStatements.get(INSERT_FRAGMENT_SQL);
+        for (NameIndex.Fragment fragment : NameIndex.fragments(name)) {
+            insert.bindString(1, fragment.text);
+            insert.bindLong(2, fragment.infix ? 1 : 0);
+            insert.bindLong(3, rowId);
+            insert.executeInsert();
+        }
+    }
+
+    /**
+     * Add delta to the number of contacts in a section. The caller must
+     * hold the lock of mStatements.
+     */
+    private void addToSection(String section, long delta) {
+        IttiaDbStatement update = mStatements.get(ADD_TO_SECTION_SQL);
+        update.bindLong(1, delta);
+        update.bindString(2, section);
+        if (update.executeUpdateDelete() == 0) {
+            IttiaDbStatement insert = mStatements.get(INSERT_SECTION_SQL);
+            insert.bindString(1, section);
+            insert.bindLong(2, delta);
+            insert.executeInsert();
+        }
+    }
+
+    /**
+     * Rebuild the sort keys in the background if they were written for
+     * another locale. Called when the database is opened and when the
+     * locale may have changed.
+     */
+    void checkSortLocale() {
+        final String locale = SortKeys.getLocaleName();
+        mDb.beginTransaction();
+        try {
+            Cursor c = mDb.query(SORT_LOCALE_TABLE, new String[] { "locale" }, null, null, null, null, null);
+            try {
+                if (c.moveToFirst() && locale.equals(c.getString(0))) {
+                    return;
+                }
+            }
+            finally {
+                c.close();
+            }
+
+            Log.i(TAG, "Rebuilding sort keys for " + locale);
+            ContentValues values = new ContentValues();
+            values.put("locale", locale);
+            mDb.update(SORT_LOCALE_TABLE, values, null, null);
+            Migrations.schedule(mDb, BACKFILL_SORT_KEYS);
+            Migrations.schedule(mDb, BACKFILL_SECTIONS);
+            mDb.setTransactionSuccessful();
+        }
+        finally {
+            mDb.endTransaction();
         }
     }
 
+    /**
+     * Bring the sort keys, alphabet section counts and name index up to
+     * date with the contacts that a sync run wrote, and add those contacts
+     * to changes. Contacts with a row ID above afterRowId were inserted,
+     * unless they already have a key, which local inserts write in their
+     * own transaction. Those have been published already and are left out.
+     * Contacts named by change rows with a row ID above afterChangeRowId
+     * were updated, or deleted if they no longer exist; see
+     * ContactChangeLog. Only these contacts are read, so the cost depends
+     * on the size of the run rather than on the size of the table. Change
+     * rows older than ContactChangeLog.RETENTION_MS are deleted. Returns
+     * the largest change row ID read, or afterChangeRowId if there was
+     * none. If this fails, all keys are checked in the background instead.
+     */
+    long applySyncChanges(long afterRowId, long afterChangeRowId, ContactChangeFeed.Changes changes) {
+        long changeRowId = afterChangeRowId;
+        try {
+            mDb.beginTransaction();
+            try {
+                Cursor c = mDb.query(false, CONTACT_SORT_JOIN, CONTACT_SORT_COLUMNS,
+                        "contact._id > ?", new String[] { Long.toString(afterRowId) },
+                        null, null, "contact._id", null);
+                try {
+                    synchronized (mStatements) {
+                        while (c.moveToNext()) {
+                            if (!c.isNull(2)) {
+                                // Inserted locally during the run.
+                                continue;
+                            }
+                            final long rowId = c.getLong(0);
+                            final String name = c.getString(1);
+                            putSortKey(rowId, name, null);
+                            changes.inserted.add(new ContactChangeFeed.Row(rowId, name, null));
+                        }
+                    }
+                }
+                finally {
+                    c.close();
+                }
+
+                // A contact changed several times is read once, in its
+                // current state.
+                HashSet<Long> contactIds = new HashSet<Long>();
+                c = ContactChangeLog.fetchAfter(mDb, afterChangeRowId);
+                try {
+                    while (c.moveToNext()) {
+                        changeRowId = c.getLong(0);
+                        if (contactIds.add(c.getLong(1))) {
+                            applyChange(c.getLong(1), c.getString(2), afterRowId, changes);
+                        }
+                    }
+                }
+                finally {
+                    c.close();
+                }
+
+                ContactChangeLog.prune(mDb, System.currentTimeMillis());
+                mDb.setTransactionSuccessful();
+            }
+            finally {
+                mDb.endTransaction();
+            }
+        }
+        catch (RuntimeException ex) {
+            // Keys of the contacts of this run would otherwise stay missing
+            // or out of date, since the next run reads only its own.
+            checkSortKeys();
+            throw ex;
+        }
+        return changeRowId;
+    }
+
+    /**
+     * Update the sort key of the contact with a replication key after a
+     * peer changed it, or drop the key if the peer deleted it, in which case
+     * name is its name before the delete.
+     */
+    private void applyChange(long contactId, String name, long afterRowId,
+            ContactChangeFeed.Changes changes) {
+        Cursor c = mDb.query(false, CONTACT_SORT_JOIN, CONTACT_SORT_COLUMNS,
+                "contact.contact_id = ?", new String[] { Long.toString(contactId) },
+                null, null, null, null);
+        try {
+            if (c.moveToFirst()) {
+                final long rowId = c.getLong(0);
+                if (rowId > afterRowId) {
+                    // Listed as inserted.
+                    return;
+                }
+                final String currentName = c.getString(1);
+                final String keyName = c.getString(2);
+                String previousName = null;
+                if (!currentName.equals(keyName)) {
+                    synchronized (mStatements) {
+                        putSortKey(rowId, currentName, keyName);
+                    }
+                    previousName = keyName;
+                }
+                changes.updated.add(new ContactChangeFeed.Row(rowId, currentName, previousName));
+                return;
+            }
+        }
+        finally {
+            c.close();
+        }
+
+        // The contact's row is gone. Its key is one without a contact that
+        // was made from its name.
+        c = mDb.query(false, SORT_CONTACT_JOIN, new String[] { "contact_sort._id" },
+                "contact_sort.name = ? and contact._id is null", new String[] { name },
+                null, null, null, null);
+        try {
+            synchronized (mStatements) {
+                while (c.moveToNext()) {
+                    final long rowId = c.getLong(0);
+                    deleteSortKey(rowId, name);
+                    changes.deleted.add(new ContactChangeFeed.Row(rowId, name, null));
+                }
+            }
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Check every sort key in the background, writing those that are
+     * missing or out of date and dropping those of deleted contacts. Called
+     * when a sync run may have missed changes. See ContactChangeLog.
+     */
+    void checkSortKeys() {
+        mDb.beginTransaction();
+        try {
+            if (!Migrations.isPending(mDb, BACKFILL_SORT_KEY_CHECK)) {
+                Migrations.schedule(mDb, BACKFILL_SORT_KEY_CHECK);
+            }
+            if (!Migrations.isPending(mDb, BACKFILL_SORT_KEY_ORPHANS)) {
+                Migrations.schedule(mDb, BACKFILL_SORT_KEY_ORPHANS);
+            }
+            mDb.setTransactionSuccessful();
+        }
+        finally {
+            mDb.endTransaction();
+        }
+        Migrations.startBackfills(mCtx);
+    }
+
+    /** Returns the largest row ID of the change log. See ContactChangeLog. */
+    long fetchMaxChangeRowId() {
+        return ContactChangeLog.fetchMaxRowId(mDb);
+    }
+
+    /**
+     * Run one batch of a pending backfill. Returns false if none is
+     * pending. See Migrations.
+     */
+    boolean runBackfillBatch(int batchSize) {
+        return Migrations.runBatch(mDb, getBackfills(), batchSize);
+    }
+
+    /**
+     * Scale a PNG picture down to fit in a size x size square and encode it
+     * as PNG again. Returns null if the picture cannot be decoded.
+     */
+    static byte[] createThumbnail(byte[] picture, int size) {
+        if (picture == null) {
+            return null;
+        }
+
+        // Read the dimensions first so that large pictures can be subsampled
+        // while decoding instead of after.
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(picture, 0, picture.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (options.outWidth / (options.inSampleSize * 2) >= size &&
+                options.outHeight / (options.inSampleSize * 2) >= size) {
+            options.inSampleSize *= 2;
+        }
+        Bitmap bitmap = BitmapFactory.decodeByteArray(picture, 0, picture.length, options);
+        if (bitmap == null) {
+            return null;
+        }
+
+        float scale = Math.min(1.0f, (float) size / Math.max(bitmap.getWidth(), bitmap.getHeight()));
+        if (scale < 1.0f) {
+            bitmap = Bitmap.createScaledBitmap(bitmap,
+                    Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                    Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+        }
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 0, stream);
+        return stream.toByteArray();
+    }
+
 	public PhoneBookDbAdapter(Context context) {
 		this.mCtx = context;
 	}
@@ -68,34 +866,497 @@ public class PhoneBookDbAdapter {
 	public PhoneBookDbAdapter open() throws SQLException {
 		mDbHelper = new DatabaseHelper(mCtx);
 		mDb = mDbHelper.getWritableDatabase();
+		mStatements = new StatementCache(mDb);
 		return this;
 	}
 	
 	public void close() {
+		if (Log.isLoggable(TAG, Log.DEBUG)) {
+			Log.d(TAG, "Statement cache: " + mStatements.getHits() + " hits, " +
+					mStatements.getMisses() + " misses");
+		}
+		mStatements.close();
 		mDbHelper.close();
 	}
 
+    /** Number of times a compiled statement was reused on this connection. */
+    public int getStatementCacheHits() {
+        return mStatements.getHits();
+    }
+
+    /** Number of statements compiled on this connection. */
+    public int getStatementCacheMisses() {
+        return mStatements.getMisses();
+    }
+
+    private long insertContact(String name, Long ring_id, String pictureHash) {
+        synchronized (mStatements) {
+            IttiaDbStatement insert = mStatements.get(INSERT_CONTACT_SQL);
+            insert.bindString(1, name);
+            StatementCache.bindLong(insert, 2, ring_id);
+            StatementCache.bindString(insert, 3, pictureHash);
+            long rowId = insert.executeInsert();
+            if (rowId > 0) {
+                putSortKey(rowId, name, null);
+            }
+            return rowId;
+        }
+    }
+
+    /** Receives progress from importContacts() after each batch commits. */
+    public interface ImportListener {
+        void onBatchCommitted(int rowsImported, long elapsedMillis);
+    }
+
+    /** Number of contacts written in each importContacts() transaction. */
+    public static final int DEFAULT_IMPORT_BATCH_SIZE = 1000;
+
+    /**
+     * Insert all contacts returned by an iterator. Contacts are written
+     * batchSize at a time, each batch in one transaction, so the commit
+     * cost is paid once per batch instead of once per contact. If a batch
+     * fails, the contacts in earlier batches remain imported. A picture
+     * shared by several contacts is stored and thumbnailed only once.
+     * Returns the number of contacts imported.
+     */
+    public int importContacts(Iterator<Contact> contacts, int batchSize, ImportListener listener) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1");
+        }
+
+        final int thumbnailSize = getThumbnailSize();
+        final long startTime = SystemClock.elapsedRealtime();
+        int imported = 0;
+
+        while (contacts.hasNext()) {
+            ContactChangeFeed.Changes changes = new ContactChangeFeed.Changes();
+
+            mDb.beginTransaction();
+            try {
+                for (int i = 0; i < batchSize && contacts.hasNext(); ++i) {
+                    Contact contact = contacts.next();
+                    long rowId = insertContact(contact.name, contact.ringId,
+                            PictureStore.acquire(mDb, contact.picture, thumbnailSize));
+                    if (rowId > 0) {
+                        changes.inserted.add(new ContactChangeFeed.Row(rowId, contact.name, null));
+                    }
+                }
+                mDb.setTransactionSuccessful();
+            }
+            finally {
+                mDb.endTransaction();
+            }
+
+            imported += changes.inserted.size();
+            publish(changes);
+            if (listener != null) {
+                listener.onBatchCommitted(imported, SystemClock.elapsedRealtime() - startTime);
+            }
+        }
+
+        final long elapsed = SystemClock.elapsedRealtime() - startTime;
+        Log.i(TAG, "Imported " + imported + " contacts in " + elapsed + " ms (" +
+                (elapsed > 0 ? imported * 1000L / elapsed : imported) + " rows/s)");
+        return imported;
+    }
+
     public long createContact(String name, Long ring_id) {
-        ContentValues initialValues = new ContentValues();
-        initialValues.put(KEY_NAME, name);
-        initialValues.put(KEY_RING_ID, ring_id);
-        return mDb.insert(CONTACT_TABLE, null, initialValues);
+        return createContact(name, ring_id, null);
+    }
+
+    /**
+     * Insert a contact with a picture, which can be null, in one
+     * transaction.
+     */
+    public long createContact(String name, Long ring_id, byte[] picture) {
+        long rowId;
+        mDb.beginTransaction();
+        try {
+            String hash = PictureStore.acquire(mDb, picture, getThumbnailSize());
+            rowId = insertContact(name, ring_id, hash);
+            if (rowId <= 0) {
+                PictureStore.release(mDb, hash);
+            }
+            // Always commit, so that a failed insert does not roll back
+            // the other writes of an enclosing group.
+            mDb.setTransactionSuccessful();
+        }
+        finally {
+            mDb.endTransaction();
+        }
+
+        if (rowId > 0) {
+            ContactChangeFeed.Changes changes = new ContactChangeFeed.Changes();
+            changes.inserted.add(new ContactChangeFeed.Row(rowId, name, null));
+            publish(changes);
+        }
+        return rowId;
     }
 
 	public boolean deleteContact(long rowId) {
-		return mDb.delete(CONTACT_TABLE, KEY_ROWID + "=" + rowId, null) > 0;
+		String name;
+		int deleted;
+		mDb.beginTransaction();
+		try {
+			// Read the name in the transaction of the delete, so that it is
+			// the name of the deleted row. Listeners use it to find the row
+			// in the list, and the sort key is counted in its section.
+			name = fetchContactName(rowId);
+			String pictureHash = fetchPictureHash(rowId);
+			Long contactId = fetchContactKey(rowId);
+			synchronized (mStatements) {
+				IttiaDbStatement delete = mStatements.get(DELETE_CONTACT_SQL);
+				delete.bindLong(1, rowId);
+				deleted = delete.executeUpdateDelete();
+				if (deleted > 0) {
+					deleteSortKey(rowId, name);
+				}
+			}
+			if (deleted > 0) {
+				PictureStore.release(mDb, pictureHash);
+				PhoneNumbers.deleteAll(mDb, rowId, contactId);
+				if (contactId != null) {
+					ContactChangeLog.insert(mDb, contactId, name);
+				}
+			}
+			mDb.setTransactionSuccessful();
+		}
+		finally {
+			mDb.endTransaction();
+		}
+		if (deleted > 0) {
+			ContactChangeFeed.Changes changes = new ContactChangeFeed.Changes();
+			changes.deleted.add(new ContactChangeFeed.Row(rowId, name, null));
+			publish(changes);
+			return true;
+		}
+		return false;
 	}
 
+    /**
+     * Returns true while the list is in (name, _id) order, with the name in
+     * the sort_key column, because the sort keys are being written after an
+     * upgrade or a change of locale. Listing by sort key would leave out
+     * contacts that have no key yet. When the keys are done, Migrations
+     * publishes a change of order, and the list is in (sort_key, _id)
+     * order again.
+     */
+    public boolean isListInNameOrder() {
+        return Migrations.isPending(mDb, BACKFILL_SORT_KEYS);
+    }
+
+    private Cursor queryList(boolean byName, String selection, String[] selectionArgs, String limit) {
+        return mDb.query(false, byName ? CONTACT_PICTURE_JOIN : LIST_JOIN,
+                byName ? NAME_LIST_PROJECTION : LIST_PROJECTION, selection, selectionArgs,
+                null, null, byName ? NAME_LIST_ORDER : LIST_ORDER, limit);
+    }
+
+	/** Fetch all contacts in list order. */
 	public Cursor fetchAllContacts() {
-		return mDb.query(CONTACT_TABLE, new String[] { KEY_ROWID, KEY_NAME,
-				KEY_RING_ID, KEY_PICTURE }, null, null, null, null, null);
+		return queryList(isListInNameOrder(), null, null, null);
 	}
-	
+
+    /**
+     * Fetch at most limit contacts in the current list order, starting
+     * after the given key. See fetchContactsAfter(boolean, String, long,
+     * int).
+     */
+    public Cursor fetchContactsAfter(String sortKey, long rowId, int limit) {
+        return fetchContactsAfter(isListInNameOrder(), sortKey, rowId, limit);
+    }
+
+    /**
+     * Fetch at most limit contacts in list order, which is (sort_key, _id),
+     * or (name, _id) if byName is true, starting after the given key. Pass
+     * a null sortKey to fetch the first page. Rows are read in the order of
+     * the by_sort_key or by_name index, without a sort, so the cost of a
+     * page does not depend on how far into the list it is.
+     */
+    public Cursor fetchContactsAfter(boolean byName, String sortKey, long rowId, int limit) {
+        String selection = null;
+        String[] selectionArgs = null;
+
+        if (sortKey != null) {
+            selection = byName ? AFTER_NAME_SELECTION : AFTER_SORT_KEY_SELECTION;
+            selectionArgs = new String[] { sortKey, sortKey, Long.toString(rowId) };
+        }
+
+        return queryList(byName, selection, selectionArgs, Integer.toString(limit));
+    }
+
+    /**
+     * Query the given columns of contacts, joining the picture table only
+     * if a picture column is requested. Any contact column may be named,
+     * as well as KEY_PICTURE and KEY_THUMBNAIL. Throws
+     * IllegalArgumentException for other columns.
+     */
+    public Cursor queryContacts(String[] columns, String selection, String[] selectionArgs,
+            String orderBy, String limit) {
+        boolean joinPicture = false;
+        String[] expressions = new String[columns.length];
+        for (int i = 0; i < columns.length; ++i) {
+            final String column = columns[i];
+            if (column.equals(KEY_PICTURE) || column.equals(KEY_THUMBNAIL)) {
+                joinPicture = true;
+                expressions[i] = "picture." + column + " as " + column;
+            }
+            else if (column.equals(KEY_ROWID) || column.equals(KEY_CONTACT_ID) ||
+                    column.equals(KEY_NAME) || column.equals(KEY_RING_ID) ||
+                    column.equals(KEY_PICTURE_HASH)) {
+                expressions[i] = "contact." + column + " as " + column;
+            }
+            else {
+                throw new IllegalArgumentException("Unknown column " + column);
+            }
+        }
+
+        return mDb.query(false, joinPicture ? CONTACT_PICTURE_JOIN : CONTACT_TABLE, expressions,
+                selection, selectionArgs, null, null, orderBy, limit);
+    }
+
+    /**
+     * Query at most limit contacts that match a selection, in (name, _id)
+     * order, starting after the given key. Pass a null name to start from
+     * the first match. See queryContacts() for the columns allowed.
+     */
+    public Cursor queryContactsAfter(String[] columns, String selection, String[] selectionArgs,
+            String name, long rowId, int limit) {
+        if (name != null) {
+            String[] args = new String[] { name, name, Long.toString(rowId) };
+            if (selection != null) {
+                selection = AFTER_KEY_SELECTION + " and (" + selection + ")";
+                if (selectionArgs != null) {
+                    String[] combined = new String[args.length + selectionArgs.length];
+                    System.arraycopy(args, 0, combined, 0, args.length);
+                    System.arraycopy(selectionArgs, 0, combined, args.length, selectionArgs.length);
+                    args = combined;
+                }
+            }
+            else {
+                selection = AFTER_KEY_SELECTION;
+            }
+            selectionArgs = args;
+        }
+
+        return queryContacts(columns, selection, selectionArgs,
+                KEY_NAME + ", " + KEY_ROWID, Integer.toString(limit));
+    }
+
+    /**
+     * Fetch all contacts with a key after the first key and no later than
+     * the last key, in list order. The keys are (sort_key, _id), or
+     * (name, _id) if byName is true.
+     */
+    public Cursor fetchContactsBetween(boolean byName, String afterKey, long afterId,
+            String lastKey, long lastId) {
+        String selection = byName ? UP_TO_NAME_SELECTION : UP_TO_SORT_KEY_SELECTION;
+        String[] selectionArgs;
+
+        if (afterKey != null) {
+            selection = (byName ? AFTER_NAME_SELECTION : AFTER_SORT_KEY_SELECTION) + " and " + selection;
+            selectionArgs = new String[] { afterKey, afterKey, Long.toString(afterId),
+                    lastKey, lastKey, Long.toString(lastId) };
+        }
+        else {
+            selectionArgs = new String[] { lastKey, lastKey, Long.toString(lastId) };
+        }
+
+        return queryList(byName, selection, selectionArgs, null);
+    }
+
+    public long fetchMaxContactId() {
+        Cursor c = mDb.query(CONTACT_TABLE, new String[] { "max(" + KEY_ROWID + ")" },
+                null, null, null, null, null);
+        try {
+            return (c.moveToFirst() && !c.isNull(0)) ? c.getLong(0) : 0;
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Fetch at most limit contacts whose name starts with prefix, in
+     * (name, _id) order, starting after the given key. Pass a null name to
+     * start from the first match. Matches form one range of the by_name
+     * index and are read in its order, without a sort, so the cost of a
+     * page does not depend on the number of matches. The sort_key column
+     * holds the name, as in fetchContactsAfter() with byName.
+     */
+    public Cursor searchByNamePrefix(String prefix, String name, long rowId, int limit) {
+        String end = prefixEnd(prefix);
+        String selection = "contact.name >= ?";
+        ArrayList<String> selectionArgs = new ArrayList<String>();
+        selectionArgs.add(prefix);
+
+        if (end != null) {
+            selection += " and contact.name < ?";
+            selectionArgs.add(end);
+        }
+        if (name != null) {
+            selection += " and " + AFTER_NAME_SELECTION;
+            selectionArgs.add(name);
+            selectionArgs.add(name);
+            selectionArgs.add(Long.toString(rowId));
+        }
+
+        return queryList(true, selection, selectionArgs.toArray(new String[selectionArgs.size()]),
+                Integer.toString(limit));
+    }
+
+    /**
+     * Returns the first string after all strings that start with prefix, or
+     * null if there is none.
+     */
+    static String prefixEnd(String prefix) {
+        int i = prefix.length() - 1;
+        while (i >= 0 && prefix.charAt(i) == Character.MAX_VALUE) {
+            --i;
+        }
+        if (i < 0) {
+            return null;
+        }
+        return prefix.substring(0, i) + (char) (prefix.charAt(i) + 1);
+    }
+
+    /**
+     * Find at most limit contacts with every word of query in their name,
+     * at the start of or inside any word, ignoring case and accents. Unlike
+     * searchByNamePrefix(), "smi" finds "John Smith". The cursor has the
+     * columns _id, name, sort_key and score, best match first. See
+     * NameIndex.search().
+     */
+    public Cursor searchNames(String query, int limit) {
+        return NameIndex.search(mDb, query, limit);
+    }
+
+    /**
+     * Fetch the alphabet sections of the list that have contacts, with the
+     * number of contacts in each, in no particular order. See
+     * SortKeys.getSection(). This reads the counts kept with the sort keys
+     * and does not scan the contacts. The cursor is empty until the counts
+     * have been made after an upgrade.
+     */
+    public Cursor fetchSections() {
+        return mDb.query(SECTION_TABLE, new String[] { "section", "contacts" },
+                "contacts > 0", null, null, null, null);
+    }
+
+    /**
+     * Count the contacts whose name starts with prefix, or all contacts if
+     * prefix is null.
+     */
+    public int countContacts(String prefix) {
+        if (prefix == null || prefix.isEmpty()) {
+            return countContacts();
+        }
+
+        String end = prefixEnd(prefix);
+        Cursor c = mDb.query(CONTACT_TABLE, new String[] { "count(*)" },
+                end != null ? KEY_NAME + " >= ? and " + KEY_NAME + " < ?" : KEY_NAME + " >= ?",
+                end != null ? new String[] { prefix, end } : new String[] { prefix },
+                null, null, null);
+        try {
+            return c.moveToFirst() ? c.getInt(0) : 0;
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Returns the number of contacts with a row ID above rowId, counted
+     * from the primary key index.
+     */
+    int countContactsAfter(long rowId) {
+        Cursor c = mDb.query(CONTACT_TABLE, new String[] { "count(*)" },
+                KEY_ROWID + " > ?", new String[] { Long.toString(rowId) }, null, null, null);
+        try {
+            return c.moveToFirst() ? c.getInt(0) : 0;
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    public int countContacts() {
+        Cursor c = mDb.query(CONTACT_TABLE, new String[] { "count(*)" },
+                null, null, null, null, null);
+        try {
+            return c.moveToFirst() ? c.getInt(0) : 0;
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Add a phone number to a contact. Returns the row ID of the number, or
+     * -1 if it has no digits. See PhoneNumbers.
+     */
+    public long addPhoneNumber(long contactRowId, String number) {
+        mDb.beginTransaction();
+        try {
+            final long rowId = PhoneNumbers.add(mDb, contactRowId, fetchContactKey(contactRowId), number);
+            mDb.setTransactionSuccessful();
+            return rowId;
+        }
+        finally {
+            mDb.endTransaction();
+        }
+    }
+
+    /**
+     * Delete a phone number of a contact. Returns false if the contact has
+     * no number with that row ID.
+     */
+    public boolean deletePhoneNumber(long contactRowId, long rowId) {
+        mDb.beginTransaction();
+        try {
+            final boolean deleted = PhoneNumbers.delete(mDb, contactRowId, fetchContactKey(contactRowId), rowId);
+            mDb.setTransactionSuccessful();
+            return deleted;
+        }
+        finally {
+            mDb.endTransaction();
+        }
+    }
+
+    /** Fetch the phone numbers of a contact, with the columns _id and number. */
+    public Cursor fetchPhoneNumbers(long contactRowId) {
+        return PhoneNumbers.fetch(mDb, contactRowId, fetchContactKey(contactRowId));
+    }
+
+    /**
+     * Move the pending numbers of contacts that replication has given a key
+     * into the replicated phone table. Called after each sync run. See
+     * PhoneNumbers.link().
+     */
+    void linkPhoneNumbers() {
+        mDb.beginTransaction();
+        try {
+            PhoneNumbers.link(mDb);
+            mDb.setTransactionSuccessful();
+        }
+        finally {
+            mDb.endTransaction();
+        }
+    }
+
+    /**
+     * Returns the row ID of the contact with a phone number, such as that of
+     * an incoming call, in national or international format, or -1 if no
+     * contact has it. The lookup reads the by_reversed_digits index and
+     * does not scan the numbers. See PhoneNumbers.lookup().
+     */
+    public long lookupPhoneNumber(String number) {
+        return PhoneNumbers.lookup(mDb, number);
+    }
+
 	public Cursor fetchContact(long rowId) throws SQLException {
 		Cursor mCursor =
-				mDb.query(true, CONTACT_TABLE, new String[] { KEY_ROWID,
-						KEY_NAME, KEY_RING_ID, KEY_PICTURE }, KEY_ROWID + "=" + rowId, null, null,
-						null, null, null);
+				mDb.query(true, CONTACT_PICTURE_JOIN, DETAIL_PROJECTION, CONTACT_ROWID_SELECTION,
+						new String[] { Long.toString(rowId) }, null, null, null, null);
 		
 		if (mCursor != null) {
 			mCursor.moveToFirst();
@@ -103,30 +1364,312 @@ public class PhoneBookDbAdapter {
 		return mCursor;
 	}
 	
+    @Override
+    public Contact readContact(long rowId) {
+        Cursor c = mDb.query(true, CONTACT_PICTURE_JOIN, DETAIL_PROJECTION, CONTACT_ROWID_SELECTION,
+                new String[] { Long.toString(rowId) }, null, null, null, null);
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            return new Contact(c.getString(1), c.isNull(2) ? null : c.getLong(2), c.getBlob(3));
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Visit contacts in key order. Only the columns passed to the visitor
+     * are read, so the picture table is not joined.
+     */
+    @Override
+    public int scanContactsAfter(String name, long rowId, int limit, RowVisitor visitor) {
+        Cursor c = queryContactsAfter(SCAN_COLUMNS, null, null, name, rowId, limit);
+        try {
+            int count = 0;
+            while (c.moveToNext()) {
+                visitor.onRow(c.getLong(0), c.getString(1), c.getString(2));
+                ++count;
+            }
+            return count;
+        }
+        finally {
+            c.close();
+        }
+    }
+
+	private String fetchContactName(long rowId) {
+		Cursor c = mDb.query(CONTACT_TABLE, new String[] { KEY_NAME },
+				ROWID_SELECTION, new String[] { Long.toString(rowId) }, null, null, null);
+		try {
+			return c.moveToFirst() ? c.getString(0) : null;
+		}
+		finally {
+			c.close();
+		}
+	}
+
+    /**
+     * Returns the replication key of a contact, or null if it has none
+     * because it has not been replicated yet. See ContactChangeLog.
+     */
+    private Long fetchContactKey(long rowId) {
+        Cursor c = mDb.query(CONTACT_TABLE, new String[] { KEY_CONTACT_ID },
+                ROWID_SELECTION, new String[] { Long.toString(rowId) }, null, null, null);
+        try {
+            return (c.moveToFirst() && !c.isNull(0)) ? c.getLong(0) : null;
+        }
+        finally {
+            c.close();
+        }
+    }
+
 	public boolean updateContact(long rowId, String name, Long ring_id) {
-		ContentValues args = new ContentValues();
-		args.put(KEY_NAME, name);
-		args.put(KEY_RING_ID, ring_id);
-		
-		return mDb.update(CONTACT_TABLE, args, KEY_ROWID + "=" + rowId, null) > 0;
+		return updateContact(rowId, FIELD_NAME | FIELD_RING_ID, name, ring_id, null);
 	}
 
+    private String fetchPictureHash(long rowId) {
+        Cursor c = mDb.query(CONTACT_TABLE, new String[] { KEY_PICTURE_HASH },
+                ROWID_SELECTION, new String[] { Long.toString(rowId) }, null, null, null);
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Replace a contact's picture. The new picture is stored only if no
+     * other contact already uses it. The old one is kept for the server to
+     * collect. See PictureStore.
+     */
     public boolean updateContactPicture(long rowId, byte[] picture) {
-        ContentValues args = new ContentValues();
-        args.put(KEY_PICTURE, picture);
+        return updateContact(rowId, FIELD_PICTURE, null, null, picture);
+    }
+
+    /**
+     * Write the given fields of a contact and leave the others unchanged.
+     * All fields are set by one UPDATE statement, in one transaction with
+     * the picture reference counts and the change row for peers (see
+     * ContactChangeLog). Each combination of fields has its own
+     * compiled statement. Returns false without writing if fields is 0 or
+     * if FIELD_NAME is given with a null name, since names are required.
+     */
+    public boolean updateContact(long rowId, int fields, String name, Long ring_id, byte[] picture) {
+        if (fields == 0 || ((fields & FIELD_NAME) != 0 && name == null)) {
+            return false;
+        }
+
+        StringBuilder sql = new StringBuilder("update contact set ");
+        String separator = "";
+        if ((fields & FIELD_NAME) != 0) {
+            sql.append(separator).append("name = ?");
+            separator = ", ";
+        }
+        if ((fields & FIELD_RING_ID) != 0) {
+            sql.append(separator).append("ring_id = ?");
+            separator = ", ";
+        }
+        if ((fields & FIELD_PICTURE) != 0) {
+            // Clear a picture in the format of version 2 and older, so that
+            // it does not replace the new one when it is converted.
+            sql.append(separator).append("picture_hash = ?, picture = null, thumbnail = null");
+        }
+        sql.append(" where _id = ?");
+
+        String previousName;
+        int updated;
+        mDb.beginTransaction();
+        try {
+            // Read the name first so that listeners can find the row in the list.
+            previousName = fetchContactName(rowId);
+            Long contactId = fetchContactKey(rowId);
+            String previousHash = null;
+            String hash = null;
+            if ((fields & FIELD_PICTURE) != 0) {
+                previousHash = fetchPictureHash(rowId);
+                hash = PictureStore.acquire(mDb, picture, getThumbnailSize());
+            }
+
+            synchronized (mStatements) {
+                IttiaDbStatement update = mStatements.get(sql.toString());
+                int index = 1;
+                if ((fields & FIELD_NAME) != 0) {
+                    update.bindString(index++, name);
+                }
+                if ((fields & FIELD_RING_ID) != 0) {
+                    StatementCache.bindLong(update, index++, ring_id);
+                }
+                if ((fields & FIELD_PICTURE) != 0) {
+                    StatementCache.bindString(update, index++, hash);
+                }
+                update.bindLong(index, rowId);
+                updated = update.executeUpdateDelete();
+                if (updated > 0 && (fields & FIELD_NAME) != 0 && !name.equals(previousName)) {
+                    putSortKey(rowId, name, previousName);
+                }
+            }
+            if (updated > 0 && contactId != null) {
+                ContactChangeLog.insert(mDb, contactId, (fields & FIELD_NAME) != 0 ? name : previousName);
+            }
+
+            // If no row was updated, take back the reference just added.
+            // Either way, commit so that an enclosing group is not rolled
+            // back.
+            PictureStore.release(mDb, updated > 0 ? previousHash : hash);
+            mDb.setTransactionSuccessful();
+        }
+        finally {
+            mDb.endTransaction();
+        }
+
+        if (updated > 0) {
+            if ((fields & FIELD_PICTURE) != 0) {
+                retainPicture(rowId, picture);
+            }
+            if ((fields & FIELD_NAME) != 0) {
+                publishUpdate(rowId, name, name.equals(previousName) ? null : previousName);
+            }
+            else {
+                publishUpdate(rowId, previousName, null);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private int getThumbnailSize() {
+        return mCtx.getResources().getDimensionPixelSize(R.dimen.avatar_thumbnail_size);
+    }
+
+    private void publishUpdate(long rowId, String name, String previousName) {
+        ContactChangeFeed.Changes changes = new ContactChangeFeed.Changes();
+        changes.updated.add(new ContactChangeFeed.Row(rowId, name, previousName));
+        publish(changes);
+    }
+
+    private void publish(ContactChangeFeed.Changes changes) {
+        Group group = mGroup.get();
+        if (group != null) {
+            group.changes.add(changes);
+        }
+        else {
+            ContactChangeFeed.get().publish(changes);
+        }
+    }
+
+    // Drop the other pictures of a contact from PictureCache, once the new
+    // one is committed.
+    private void retainPicture(long rowId, byte[] picture) {
+        Group group = mGroup.get();
+        if (group != null) {
+            group.pictureRowIds.add(rowId);
+            group.pictures.add(picture);
+        }
+        else {
+            PictureCache.get().retain(rowId, picture);
+        }
+    }
+
+    /**
+     * Start a transaction that groups all writes until endGroup() into one
+     * commit. The changes made by the writes are published, and
+     * PictureCache updated, only if the group commits. Groups can be nested, in which case they commit with
+     * the outermost group, and if any of them fails, all are rolled back.
+     * A group covers the writes of the calling thread only.
+     */
+    void beginGroup() {
+        mDb.beginTransaction();
+        Group group = mGroup.get();
+        if (group == null) {
+            group = new Group();
+            mGroup.set(group);
+        }
+        ++group.depth;
+        group.successful = false;
+    }
+
+    /** Mark the current group to be committed by endGroup(). */
+    void setGroupSuccessful() {
+        mDb.setTransactionSuccessful();
+        mGroup.get().successful = true;
+    }
+
+    /**
+     * End the current group. When the outermost group ends, it is committed
+     * or rolled back, and its changes are published and PictureCache
+     * updated if it was committed.
+     */
+    void endGroup() {
+        Group group = mGroup.get();
+        if (!group.successful) {
+            group.failed = true;
+        }
+        group.successful = false;
+
+        if (--group.depth == 0) {
+            mGroup.remove();
+        }
+        mDb.endTransaction();
+        if (group.depth == 0 && !group.failed) {
+            for (int i = 0; i < group.pictures.size(); ++i) {
+                PictureCache.get().retain(group.pictureRowIds.get(i), group.pictures.get(i));
+            }
+            for (ContactChangeFeed.Changes c : group.changes) {
+                ContactChangeFeed.get().publish(c);
+            }
+        }
+    }
+
+    /**
+     * Recount picture references. Called after sync, which changes contacts
+     * without maintaining the reference counts. Returns the number of
+     * stored pictures that no local contact uses, which are left for the
+     * server to collect.
+     */
+    public int collectPictures() {
+        mDb.beginTransaction();
+        try {
+            int unreferenced = PictureStore.collect(mDb);
+            mDb.setTransactionSuccessful();
+            return unreferenced;
+        }
+        finally {
+            mDb.endTransaction();
+        }
+    }
+
+    /**
+     * Returns the connection of this adapter, for writes that must bypass
+     * the adapter as replication does, or that need its replication
+     * address. Used by ParallelSyncAdapter to replicate, by
+     * SyncAuthenticator, and by SyncBenchmark to stand in for a peer.
+     */
+    IttiaDbDatabase getDatabase() {
+        return mDb;
+    }
+
+    /** Store the metrics of a sync run. */
+    void recordSyncRun(SyncMetrics.Run run) {
+        SyncMetrics.insert(mDb, run);
+    }
 
-        return mDb.update(CONTACT_TABLE, args, KEY_ROWID + "=" + rowId, null) > 0;
+    /** Print percentiles of the stored sync run metrics. */
+    public void dumpSyncMetrics(PrintWriter pw) {
+        SyncMetrics.dump(mDb, pw);
     }
 
     public IttiaDbSyncAdapter getSyncAdapter() {
         // Create a sync adapter for the database that is initially syncable
         // and that requests replicate tokens from a sync authenticator.
-        return new IttiaDbSyncAdapter(mCtx, true, mDb, SyncContentProvider.CONTENT_URI, SyncAuthenticator.AUTH_TOKEN_TYPE_REPLICATE);
+        return new PhoneBookSyncAdapter(mCtx, this, mDb);
     }
 
-    public SyncAuthenticator getSyncAuthenticator() {
-        // Create a sync authenticator for the database that connects to
-        // PEER_URI by default.
-        return new SyncAuthenticator(mCtx, mDb, PEER_URI);
+    public static SyncAuthenticator getSyncAuthenticator(Context context) {
+        // Create a sync authenticator for the shared database that connects
+        // to PEER_URI by default.
+        return new SyncAuthenticator(context, PhoneBookDatabase.get(context), PEER_URI);
     }
 }
@@ -0,0 +1,174 @@
+package com.example.android.ittiadb.phonebook;
+
+import android.accounts.Account;
+import android.content.ContentProviderClient;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SyncResult;
+import android.database.ittiadb.IttiaDbDatabase;
+import android.database.ittiadb.IttiaDbSyncAdapter;
+import android.net.TrafficStats;
+import android.os.Bundle;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * A sync adapter that reports the contacts changed by each sync run to
+ * ContactChangeFeed.
+ *
+ * Replication does not tell which rows it wrote, so the adapter works out
+ * what it can cheaply. New rows always get row IDs above the largest one
+ * before the run, so they are found with one index range query. Updates
+ * and deletes are found the same way from the change rows that peers log
+ * with them; see ContactChangeLog. The sort keys of these contacts, and
+ * of no others, are brought up to date. Peers of version 10 and older log
+ * no changes, so other rows are still reported as possibly updated, and
+ * as possibly deleted if the row count does not add up. In that case, or
+ * if the account has not synced for longer than change rows are kept, all
+ * sort keys are checked in the background.
+ *
+ * Replicated contacts can gain or drop references to stored pictures, so
+ * picture reference counts are recounted after each run. Peers of version
+ * 2 and older send pictures in the contact table, which are moved to the
+ * picture table after each run. Phone numbers of contacts that the run
+ * gave a replication key are moved into the replicated phone table, to be
+ * sent by the next run; see PhoneNumbers.
+ *
+ * Several accounts can sync at the same time, each with its own adapter
+ * and connection; see ParallelSyncAdapter. Their post-sync work is done
+ * one run at a time, and each inserted row is reported by only one run,
+ * even if it falls in the row ID range of several. The same holds for
+ * change rows.
+ *
+ * The timing and volume of each run are recorded by SyncMetrics. Byte
+ * counts are the application's network traffic during the run, which
+ * includes that of other runs in progress.
+ */
+public class PhoneBookSyncAdapter extends IttiaDbSyncAdapter {
+    private static final String TAG = "PhoneBookSyncAdapter";
+
+    // Held for the work done after replication, which must see the rows
+    // written by all sessions.
+    private static final Object sPostSyncLock = new Object();
+
+    // Largest row ID reported as inserted by any run.
+    private static long sReportedRowId;
+    // Largest change row ID read by any run.
+    private static long sReportedChangeRowId;
+
+    // Start time of the last completed run of each account, by account name.
+    private static final String PREFERENCES_NAME = "sync_changes";
+    private static final String KEY_LAST_RUN_PREFIX = "last_run_";
+
+    private final PhoneBookDbAdapter mDbHelper;
+
+    public PhoneBookSyncAdapter(Context context, PhoneBookDbAdapter dbHelper, IttiaDbDatabase db) {
+        super(context, true, db, SyncContentProvider.CONTENT_URI, SyncAuthenticator.AUTH_TOKEN_TYPE_REPLICATE);
+        mDbHelper = dbHelper;
+    }
+
+    @Override
+    public void onPerformSync(Account account, Bundle extras, String authority,
+            ContentProviderClient provider, SyncResult syncResult) {
+        SyncMetrics.Run run = new SyncMetrics.Run();
+        run.account = account.name;
+        run.startTime = System.currentTimeMillis();
+        final long startTime = SystemClock.elapsedRealtime();
+        final int uid = Process.myUid();
+        final long rxBefore = TrafficStats.getUidRxBytes(uid);
+        final long txBefore = TrafficStats.getUidTxBytes(uid);
+
+        final long maxRowId = mDbHelper.fetchMaxContactId();
+        final long maxChangeRowId = mDbHelper.fetchMaxChangeRowId();
+        final int countBefore = mDbHelper.countContacts();
+
+        // Change rows are deleted after ContactChangeLog.RETENTION_MS, so a
+        // run that follows the last one by longer may not see all changes.
+        final SharedPreferences preferences =
+                getContext().getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        final long lastRunTime = preferences.getLong(KEY_LAST_RUN_PREFIX + account.name, 0);
+        final boolean missedChanges = lastRunTime > 0 &&
+                run.startTime - lastRunTime > ContactChangeLog.RETENTION_MS;
+
+        // The run is recorded even if replication or the work after it
+        // throws, as a failed run.
+        boolean completed = false;
+        try {
+            SyncMetrics.beginRun(account);
+            final long replicationStart = SystemClock.elapsedRealtime();
+            try {
+                replicate(account, extras, authority, provider, syncResult);
+            }
+            finally {
+                run.accessMillis = SyncMetrics.endRun(account);
+                run.replicationMillis = SystemClock.elapsedRealtime() - replicationStart - run.accessMillis;
+            }
+            ContactChangeFeed.Changes changes = new ContactChangeFeed.Changes();
+            final int countAfter;
+            synchronized (sPostSyncLock) {
+                mDbHelper.convertLegacyPictures(maxRowId);
+                mDbHelper.collectPictures();
+                mDbHelper.linkPhoneNumbers();
+                final long afterRowId = Math.max(maxRowId, sReportedRowId);
+                sReportedChangeRowId = mDbHelper.applySyncChanges(afterRowId,
+                        Math.max(maxChangeRowId, sReportedChangeRowId), changes);
+                for (ContactChangeFeed.Row row : changes.inserted) {
+                    sReportedRowId = Math.max(sReportedRowId, row.id);
+                }
+
+                // Rows inserted locally during the run were published by
+                // their write and are not listed, but they are counted. A
+                // count that does not add up may also be due to another run
+                // or to local deletes during this one. Either way, the list
+                // reloads and the keys are checked.
+                countAfter = mDbHelper.countContacts();
+                changes.fromSync = true;
+                changes.otherRowsUpdated = true;
+                changes.otherRowsDeleted = countBefore + mDbHelper.countContactsAfter(afterRowId) -
+                        changes.deleted.size() != countAfter;
+                if (changes.otherRowsDeleted || missedChanges) {
+                    mDbHelper.checkSortKeys();
+                }
+                ContactChangeFeed.get().publish(changes);
+            }
+
+            run.rowsInserted = changes.inserted.size();
+            run.rowsDeleted = Math.max(0, countBefore + changes.inserted.size() - countAfter);
+            SyncScheduler.get(getContext()).onSyncFinished(account, run.rowsInserted + run.rowsDeleted);
+            preferences.edit().putLong(KEY_LAST_RUN_PREFIX + account.name, run.startTime).apply();
+            completed = true;
+        }
+        finally {
+            run.rxBytes = trafficSince(TrafficStats.getUidRxBytes(uid), rxBefore);
+            run.txBytes = trafficSince(TrafficStats.getUidTxBytes(uid), txBefore);
+            run.failed = !completed || syncResult.hasError();
+            run.durationMillis = SystemClock.elapsedRealtime() - startTime;
+
+            try {
+                mDbHelper.recordSyncRun(run);
+            }
+            catch (RuntimeException ex) {
+                // Metrics must never fail a sync.
+                Log.w(TAG, "Could not record sync metrics", ex);
+            }
+        }
+    }
+
+    /**
+     * Exchange rows with the account's peer. SyncBenchmark overrides this
+     * to stand in for a peer without a network.
+     */
+    protected void replicate(Account account, Bundle extras, String authority,
+            ContentProviderClient provider, SyncResult syncResult) {
+        super.onPerformSync(account, extras, authority, provider, syncResult);
+    }
+
+    private static long trafficSince(long now, long before) {
+        // Traffic statistics are not supported on all devices.
+        if (now == TrafficStats.UNSUPPORTED || before == TrafficStats.UNSUPPORTED) {
+            return 0;
+        }
+        return Math.max(0, now - before);
+    }
+}
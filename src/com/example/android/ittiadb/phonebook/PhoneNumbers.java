@@ -0,0 +1,373 @@
+package com.example.android.ittiadb.phonebook;
+
+import java.util.ArrayList;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MergeCursor;
+import android.database.ittiadb.IttiaDbDatabase;
+
+/**
+ * Storage for the phone numbers of contacts.
+ *
+ * Numbers are kept in the phone table, one row per number. The table is
+ * replicated in and out like the contact table, so a number refers to its
+ * contact by the contact's replication key (contact_id), which is the same
+ * on every peer, and not by its local row ID. A contact created on this
+ * device has no replication key until its first sync. Its numbers are
+ * kept in the local phone_pending table with the contact's row ID, and
+ * link() moves them into the phone table with the key after each sync, so
+ * that peers never receive a number without its contact. A number gets a
+ * new row ID when it moves. Versions 12 and older stored pending numbers
+ * in the phone table, so peers may hold some without a contact until the
+ * device that added them upgrades and deletes them; lookup() skips them.
+ *
+ * A number is stored as entered but with only digits and a leading plus
+ * sign, and with its digits in reverse order in the reversed_digits
+ * column. The same number can be written in national or international
+ * format, which differ only at the start. Reversed, they share a prefix,
+ * so lookup() finds a number in any format with a range scan of the
+ * by_reversed_digits and by_pending_digits indexes, without reading other
+ * numbers.
+ *
+ * All methods that write must be called inside a transaction.
+ */
+class PhoneNumbers {
+    static final String PHONE_TABLE = "phone";
+
+    static final String PENDING_TABLE = "phone_pending";
+
+    static final String KEY_CONTACT_ROW_ID = "contact_row_id";
+    static final String KEY_NUMBER = "number";
+    static final String KEY_REVERSED_DIGITS = "reversed_digits";
+
+    /** Longest number stored, in characters. */
+    static final int MAX_LENGTH = 40;
+
+    /**
+     * Number of trailing digits that two numbers must share to match. Seven
+     * covers a local number without its area code.
+     */
+    static final int MIN_MATCH_DIGITS = 7;
+
+    // Numbers with their contact, if it is here.
+    private static final String LOOKUP_JOIN =
+            "phone left outer join contact on phone.contact_id = contact.contact_id";
+
+    private PhoneNumbers() {
+    }
+
+    static void createTable(IttiaDbDatabase db) {
+        db.execSQL(
+            "create table phone (" +
+            "  _id unsigned bigint generated by default as identity primary key," +
+            "  phone_id unsigned bigint null constraint phone_rep_key unique," +
+            "  contact_id unsigned bigint null," +
+            "  number varchar(" + MAX_LENGTH + ") not null," +
+            "  reversed_digits varchar(" + MAX_LENGTH + ") not null" +
+            ")");
+        db.execSQL("create index by_phone_contact on phone (contact_id)");
+        db.execSQL("create index by_reversed_digits on phone (reversed_digits)");
+
+        // Replicate the phone table in and out, alongside the contact table.
+        IttiaDbDatabase.ReplicationTable phoneRep = db.getReplicationTable(PHONE_TABLE);
+        phoneRep.replicationMode = IttiaDbDatabase.ReplicationMode.INOUT;
+        phoneRep.replicationIndex = "phone_rep_key";
+        phoneRep.apply();
+
+        createPendingTable(db);
+    }
+
+    static void createPendingTable(IttiaDbDatabase db) {
+        // Numbers of contacts without a replication key. Local to the device.
+        db.execSQL(
+            "create table phone_pending (" +
+            "  _id unsigned bigint generated by default as identity primary key," +
+            "  contact_row_id unsigned bigint not null," +
+            "  number varchar(" + MAX_LENGTH + ") not null," +
+            "  reversed_digits varchar(" + MAX_LENGTH + ") not null" +
+            ")");
+        db.execSQL("create index by_pending_contact on phone_pending (contact_row_id)");
+        db.execSQL("create index by_pending_digits on phone_pending (reversed_digits)");
+    }
+
+    /**
+     * Move the numbers of versions 9 to 11, which referred to their contact
+     * by row ID, to the phone table, or to the phone_pending table if their
+     * contact has no replication key yet. Each number in the phone table
+     * keeps its replication key, so that peers match it with their own
+     * copy. Called by onUpgrade(). It reads every number, but the table is
+     * only as large as the numbers entered since version 9.
+     */
+    static void upgradeTable(IttiaDbDatabase db) {
+        ArrayList<ContentValues> rows = new ArrayList<ContentValues>();
+        // Numbers of deleted contacts are dropped.
+        Cursor c = db.query("phone join contact on phone.contact_row_id = contact._id",
+                new String[] { "phone._id", "phone.phone_id", "phone.contact_row_id", "contact.contact_id",
+                        "phone.number", "phone.reversed_digits" },
+                null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                ContentValues values = new ContentValues();
+                values.put(PhoneBookDbAdapter.KEY_ROWID, c.getLong(0));
+                if (!c.isNull(1)) {
+                    values.put("phone_id", c.getLong(1));
+                }
+                values.put(KEY_CONTACT_ROW_ID, c.getLong(2));
+                if (!c.isNull(3)) {
+                    values.put(PhoneBookDbAdapter.KEY_CONTACT_ID, c.getLong(3));
+                }
+                values.put(KEY_NUMBER, c.getString(4));
+                values.put(KEY_REVERSED_DIGITS, c.getString(5));
+                rows.add(values);
+            }
+        }
+        finally {
+            c.close();
+        }
+
+        db.execSQL("drop table phone");
+        createTable(db);
+        for (ContentValues values : rows) {
+            if (values.containsKey(PhoneBookDbAdapter.KEY_CONTACT_ID)) {
+                values.remove(KEY_CONTACT_ROW_ID);
+                db.insert(PHONE_TABLE, null, values);
+            }
+            else {
+                values.remove(PhoneBookDbAdapter.KEY_ROWID);
+                values.remove("phone_id");
+                db.insert(PENDING_TABLE, null, values);
+            }
+        }
+    }
+
+    /**
+     * Move the pending numbers of version 12, which were stored in the
+     * replicated phone table, into the phone_pending table of version 13.
+     * Deleting them from the phone table deletes the copies that peers
+     * received at the next sync. Called by onUpgrade(). It reads only the
+     * pending numbers.
+     */
+    static void upgradePendingTable(IttiaDbDatabase db) {
+        ArrayList<ContentValues> rows = new ArrayList<ContentValues>();
+        Cursor c = db.query(false, "phone_pending join phone on phone_pending._id = phone._id",
+                new String[] { "phone._id", "phone_pending.contact_row_id", "phone.number",
+                        "phone.reversed_digits" },
+                null, null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                ContentValues values = new ContentValues();
+                values.put(PhoneBookDbAdapter.KEY_ROWID, c.getLong(0));
+                values.put(KEY_CONTACT_ROW_ID, c.getLong(1));
+                values.put(KEY_NUMBER, c.getString(2));
+                values.put(KEY_REVERSED_DIGITS, c.getString(3));
+                rows.add(values);
+            }
+        }
+        finally {
+            c.close();
+        }
+
+        db.execSQL("drop table phone_pending");
+        createPendingTable(db);
+        for (ContentValues values : rows) {
+            db.delete(PHONE_TABLE, PhoneBookDbAdapter.KEY_ROWID + " = ?",
+                    new String[] { Long.toString(values.getAsLong(PhoneBookDbAdapter.KEY_ROWID)) });
+            values.remove(PhoneBookDbAdapter.KEY_ROWID);
+            db.insert(PENDING_TABLE, null, values);
+        }
+    }
+
+    /**
+     * Returns a number with only its digits and a leading plus sign, or null
+     * if it has no digits.
+     */
+    static String normalize(String number) {
+        StringBuilder normalized = new StringBuilder(number.length());
+        boolean hasDigits = false;
+        for (int i = 0; i < number.length() && normalized.length() < MAX_LENGTH; ++i) {
+            final char c = number.charAt(i);
+            if (c >= '0' && c <= '9') {
+                normalized.append(c);
+                hasDigits = true;
+            }
+            else if (c == '+' && normalized.length() == 0) {
+                normalized.append(c);
+            }
+        }
+        return hasDigits ? normalized.toString() : null;
+    }
+
+    /** Returns the digits of a number in reverse order. */
+    static String reverseDigits(String number) {
+        StringBuilder reversed = new StringBuilder(number.length());
+        for (int i = number.length() - 1; i >= 0; --i) {
+            final char c = number.charAt(i);
+            if (c >= '0' && c <= '9') {
+                reversed.append(c);
+            }
+        }
+        return reversed.toString();
+    }
+
+    /**
+     * Add a number to a contact, given its row ID and its replication key,
+     * or null if it has none. Returns the row ID of the number, or -1 if it
+     * has no digits.
+     */
+    static long add(IttiaDbDatabase db, long contactRowId, Long contactId, String number) {
+        final String normalized = normalize(number);
+        if (normalized == null) {
+            return -1;
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(KEY_NUMBER, normalized);
+        values.put(KEY_REVERSED_DIGITS, reverseDigits(normalized));
+        if (contactId == null) {
+            values.put(KEY_CONTACT_ROW_ID, contactRowId);
+            return db.insert(PENDING_TABLE, null, values);
+        }
+        values.put(PhoneBookDbAdapter.KEY_CONTACT_ID, contactId);
+        return db.insert(PHONE_TABLE, null, values);
+    }
+
+    /**
+     * Delete a number of a contact, given the contact's row ID and its
+     * replication key, or null if it has none. Returns false if the
+     * contact has no number with that row ID.
+     */
+    static boolean delete(IttiaDbDatabase db, long contactRowId, Long contactId, long rowId) {
+        if (db.delete(PENDING_TABLE, PhoneBookDbAdapter.KEY_ROWID + " = ? and " + KEY_CONTACT_ROW_ID + " = ?",
+                new String[] { Long.toString(rowId), Long.toString(contactRowId) }) > 0) {
+            return true;
+        }
+        return contactId != null && db.delete(PHONE_TABLE,
+                PhoneBookDbAdapter.KEY_ROWID + " = ? and " + PhoneBookDbAdapter.KEY_CONTACT_ID + " = ?",
+                new String[] { Long.toString(rowId), Long.toString(contactId) }) > 0;
+    }
+
+    /**
+     * Delete all numbers of a contact, given its row ID and its replication
+     * key, or null if it has none.
+     */
+    static void deleteAll(IttiaDbDatabase db, long contactRowId, Long contactId) {
+        if (contactId != null) {
+            db.delete(PHONE_TABLE, PhoneBookDbAdapter.KEY_CONTACT_ID + " = ?",
+                    new String[] { Long.toString(contactId) });
+        }
+        db.delete(PENDING_TABLE, KEY_CONTACT_ROW_ID + " = ?", new String[] { Long.toString(contactRowId) });
+    }
+
+    /**
+     * Fetch the numbers of a contact, given its row ID and its replication
+     * key, or null if it has none, with the columns _id and number. A
+     * contact that has just been given a key may still have pending
+     * numbers, which follow the others.
+     */
+    static Cursor fetch(IttiaDbDatabase db, long contactRowId, Long contactId) {
+        final String[] columns = new String[] { PhoneBookDbAdapter.KEY_ROWID, KEY_NUMBER };
+        Cursor pending = db.query(PENDING_TABLE, columns,
+                KEY_CONTACT_ROW_ID + " = ?", new String[] { Long.toString(contactRowId) },
+                null, null, PhoneBookDbAdapter.KEY_ROWID);
+        if (contactId == null) {
+            return pending;
+        }
+        Cursor linked = db.query(PHONE_TABLE, columns,
+                PhoneBookDbAdapter.KEY_CONTACT_ID + " = ?", new String[] { Long.toString(contactId) },
+                null, null, PhoneBookDbAdapter.KEY_ROWID);
+        return new MergeCursor(new Cursor[] { linked, pending });
+    }
+
+    /**
+     * Move the pending numbers of contacts that have gained a replication
+     * key since they were added into the phone table with that key, so
+     * that the next sync sends them to peers. Reads only the pending
+     * numbers. Returns the number moved.
+     */
+    static int link(IttiaDbDatabase db) {
+        int linked = 0;
+        Cursor c = db.query(false, "phone_pending join contact on phone_pending.contact_row_id = contact._id",
+                new String[] { "phone_pending._id", "contact.contact_id", "phone_pending.number",
+                        "phone_pending.reversed_digits" },
+                "contact.contact_id is not null", null, null, null, null, null);
+        try {
+            ContentValues values = new ContentValues();
+            while (c.moveToNext()) {
+                values.put(PhoneBookDbAdapter.KEY_CONTACT_ID, c.getLong(1));
+                values.put(KEY_NUMBER, c.getString(2));
+                values.put(KEY_REVERSED_DIGITS, c.getString(3));
+                db.insert(PHONE_TABLE, null, values);
+                db.delete(PENDING_TABLE, PhoneBookDbAdapter.KEY_ROWID + " = ?",
+                        new String[] { Long.toString(c.getLong(0)) });
+                ++linked;
+            }
+        }
+        finally {
+            c.close();
+        }
+        return linked;
+    }
+
+    /**
+     * Returns the row ID of the contact whose number matches the most
+     * trailing digits of a number, at least MIN_MATCH_DIGITS of them or
+     * all of both numbers, or -1 if there is none. Only numbers sharing
+     * the last MIN_MATCH_DIGITS digits are read, from the
+     * by_reversed_digits index joined with the contact by replication
+     * key, and from the by_pending_digits index.
+     */
+    static long lookup(IttiaDbDatabase db, String number) {
+        final String reversed = reverseDigits(number);
+        if (reversed.isEmpty()) {
+            return -1;
+        }
+
+        final String prefix = reversed.substring(0, Math.min(reversed.length(), MIN_MATCH_DIGITS));
+        final String end = PhoneBookDbAdapter.prefixEnd(prefix);
+        final String[] args = end != null ? new String[] { prefix, end } : new String[] { prefix };
+        long[] best = new long[] { -1, 0 };
+        match(db.query(false, LOOKUP_JOIN,
+                new String[] { "contact._id", "phone.reversed_digits" },
+                digitsSelection("phone", end), args, null, null, null, null), reversed, best);
+        match(db.query(false, PENDING_TABLE,
+                new String[] { KEY_CONTACT_ROW_ID, KEY_REVERSED_DIGITS },
+                digitsSelection(PENDING_TABLE, end), args, null, null, null, null), reversed, best);
+        return best[0];
+    }
+
+    private static String digitsSelection(String table, String end) {
+        return end != null ?
+                table + ".reversed_digits >= ? and " + table + ".reversed_digits < ?" :
+                table + ".reversed_digits >= ?";
+    }
+
+    /**
+     * Read candidates with the columns contact row ID and reversed digits
+     * into best, which holds the row ID of the best contact so far and the
+     * number of digits it matched, and close the cursor.
+     */
+    private static void match(Cursor c, String reversed, long[] best) {
+        try {
+            while (c.moveToNext()) {
+                final String candidate = c.getString(1);
+                int length = 0;
+                while (length < reversed.length() && length < candidate.length() &&
+                        reversed.charAt(length) == candidate.charAt(length)) {
+                    ++length;
+                }
+                // Numbers shorter than MIN_MATCH_DIGITS must be equal.
+                final boolean matches = length >= MIN_MATCH_DIGITS ||
+                        (length == reversed.length() && length == candidate.length());
+                // A number whose contact is not here has none.
+                if (matches && !c.isNull(0) && length > best[1]) {
+                    best[0] = c.getLong(0);
+                    best[1] = length;
+                }
+            }
+        }
+        finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.example.android.ittiadb.phonebook;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * A process-wide cache of decoded contact pictures.
+ *
+ * Entries are keyed by contact row ID and a checksum of the encoded picture,
+ * so a picture changed by any writer is never served from the cache. The
+ * entries of a contact are also removed as soon as its picture is updated
+ * locally or the contact is changed by sync. The least recently used
+ * pictures are evicted when the decoded size exceeds a byte budget.
+ */
+public class PictureCache implements ContactChangeFeed.Listener {
+    private static PictureCache sInstance;
+
+    private static class Key {
+        final long rowId;
+        final long checksum;
+
+        Key(long rowId, long checksum) {
+            this.rowId = rowId;
+            this.checksum = checksum;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return rowId == other.rowId && checksum == other.checksum;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (rowId ^ (rowId >>> 32) ^ checksum);
+        }
+    }
+
+    // Iterates from least to most recently used.
+    private final LinkedHashMap<Key, Bitmap> mBitmaps = new LinkedHashMap<Key, Bitmap>(16, 0.75f, true);
+    private long mMaxBytes;
+    private long mBytes;
+
+    /** Returns the cache, creating it on first use. */
+    public static synchronized PictureCache get() {
+        if (sInstance == null) {
+            sInstance = new PictureCache(Runtime.getRuntime().maxMemory() / 16);
+            ContactChangeFeed.get().registerListener(sInstance);
+        }
+        return sInstance;
+    }
+
+    private PictureCache(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Set the largest total size of the decoded pictures kept, evicting
+     * pictures if necessary.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        mMaxBytes = maxBytes;
+        trim();
+    }
+
+    /**
+     * Returns the decoded picture of a contact, decoding it only if it is
+     * not in the cache. Returns null if picture is null or cannot be decoded.
+     */
+    public Bitmap getBitmap(long rowId, byte[] picture) {
+        if (picture == null) {
+            return null;
+        }
+
+        Key key = new Key(rowId, checksum(picture));
+
+        synchronized (this) {
+            Bitmap bitmap = mBitmaps.get(key);
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
+
+        // Decode outside the lock so other lookups are not held up.
+        Bitmap bitmap = BitmapFactory.decodeByteArray(picture, 0, picture.length);
+        if (bitmap != null) {
+            synchronized (this) {
+                Bitmap previous = mBitmaps.put(key, bitmap);
+                if (previous != null) {
+                    mBytes -= sizeOf(previous);
+                }
+                mBytes += sizeOf(bitmap);
+                trim();
+            }
+        }
+        return bitmap;
+    }
+
+    /** Remove all pictures of a contact. */
+    public void remove(long rowId) {
+        retain(rowId, null);
+    }
+
+    /**
+     * Remove all pictures of a contact except the given one, which can be
+     * null. Called when the picture is replaced, so that a picture decoded
+     * while it was being edited is kept.
+     */
+    public synchronized void retain(long rowId, byte[] picture) {
+        final long keep = picture != null ? checksum(picture) : -1;
+        Iterator<Map.Entry<Key, Bitmap>> it = mBitmaps.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Bitmap> entry = it.next();
+            if (entry.getKey().rowId == rowId && entry.getKey().checksum != keep) {
+                mBytes -= sizeOf(entry.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public void onContactsChanged(ContactChangeFeed.Changes changes) {
+        // Local picture updates have already called retain(). Updates from
+        // sync that are not listed change the checksum of any picture they
+        // replace, so those entries are never served again and age out of
+        // the cache.
+        if (changes.fromSync) {
+            for (ContactChangeFeed.Row row : changes.updated) {
+                remove(row.id);
+            }
+        }
+        for (ContactChangeFeed.Row row : changes.deleted) {
+            remove(row.id);
+        }
+    }
+
+    private void trim() {
+        Iterator<Bitmap> it = mBitmaps.values().iterator();
+        while (mBytes > mMaxBytes && it.hasNext()) {
+            mBytes -= sizeOf(it.next());
+            it.remove();
+        }
+    }
+
+    private static long checksum(byte[] picture) {
+        CRC32 crc = new CRC32();
+        crc.update(picture);
+        return crc.getValue();
+    }
+
+    private static long sizeOf(Bitmap bitmap) {
+        return (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
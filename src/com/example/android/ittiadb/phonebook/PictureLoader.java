@@ -0,0 +1,165 @@
+package com.example.android.ittiadb.phonebook;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * Prepares contact pictures for ContactEdit on a background thread.
+ *
+ * The stock pictures that can be assigned to a contact are decoded and
+ * encoded as PNG once per process, the first time any of them is requested,
+ * and kept in both forms. Stored pictures are decoded through PictureCache.
+ * Results are delivered on the main thread. All methods must be called on
+ * the main thread.
+ */
+public class PictureLoader {
+    private static final String TAG = "PictureLoader";
+
+    /** The fixed collection of pictures that can be assigned to contacts. */
+    private static final int[] STOCK_PICTURES = new int[] {
+        R.drawable.woman1,
+        R.drawable.man1,
+        R.drawable.man2,
+        R.drawable.woman2,
+        R.drawable.woman3,
+        R.drawable.man3,
+    };
+
+    /** Receives a picture on the main thread. */
+    public interface Callback {
+        /**
+         * Called with the PNG encoding of a picture and its decoded bitmap.
+         * The bitmap is null if the picture could not be decoded.
+         */
+        void onPictureLoaded(byte[] picture, Bitmap bitmap);
+    }
+
+    private static PictureLoader sInstance;
+
+    private final Resources mResources;
+    private final ExecutorService mExecutor;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Set on the main thread once each picture is prepared.
+    private final byte[][] mStockEncoded = new byte[STOCK_PICTURES.length][];
+    private final Bitmap[] mStockBitmaps = new Bitmap[STOCK_PICTURES.length];
+    private boolean mStockRequested;
+
+    /** Returns the loader, creating it on first use. */
+    public static PictureLoader get(Context context) {
+        if (sInstance == null) {
+            // Keep the application's resources, not an activity's.
+            sInstance = new PictureLoader(context.getApplicationContext().getResources());
+        }
+        return sInstance;
+    }
+
+    private PictureLoader(Resources resources) {
+        mResources = resources;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, TAG);
+            }
+        });
+    }
+
+    public int getStockPictureCount() {
+        return STOCK_PICTURES.length;
+    }
+
+    /**
+     * Start preparing all stock pictures, if that has not been done yet.
+     * Called early so that the first request does not have to wait.
+     */
+    public void prepareStockPictures() {
+        if (mStockRequested) {
+            return;
+        }
+        mStockRequested = true;
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < STOCK_PICTURES.length; ++i) {
+                    Bitmap bitmap = BitmapFactory.decodeResource(mResources, STOCK_PICTURES[i]);
+                    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                    bitmap.compress(Bitmap.CompressFormat.PNG, 0, stream);
+                    final int index = i;
+                    final byte[] encoded = stream.toByteArray();
+                    final Bitmap decoded = bitmap;
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mStockEncoded[index] = encoded;
+                            mStockBitmaps[index] = decoded;
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Deliver a stock picture. If it is already prepared, the callback is
+     * called before this method returns.
+     */
+    public void loadStockPicture(final int index, final Callback callback) {
+        if (mStockEncoded[index] != null) {
+            callback.onPictureLoaded(mStockEncoded[index], mStockBitmaps[index]);
+            return;
+        }
+
+        prepareStockPictures();
+
+        // Runs after the pictures are prepared, since the loader thread
+        // handles one task at a time in order.
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onPictureLoaded(mStockEncoded[index], mStockBitmaps[index]);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Decode a stored picture of a contact, or of a new contact if rowId is
+     * null.
+     */
+    public void decodePicture(final Long rowId, final byte[] picture, final Callback callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap = rowId != null ? PictureCache.get().getBitmap(rowId, picture) :
+                        BitmapFactory.decodeByteArray(picture, 0, picture.length);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onPictureLoaded(picture, bitmap);
+                    }
+                });
+            }
+        });
+    }
+}
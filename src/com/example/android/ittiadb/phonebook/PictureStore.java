@@ -0,0 +1,202 @@
+package com.example.android.ittiadb.phonebook;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.ittiadb.IttiaDbDatabase;
+
+/**
+ * Content-addressed storage for contact pictures.
+ *
+ * Each distinct picture is stored once in the picture table, keyed by the
+ * SHA-1 hash of its PNG encoding, together with its thumbnail. Contacts
+ * refer to a picture by hash. The picture table is replicated, so a picture
+ * shared by many contacts is also sent once.
+ *
+ * The number of local contacts that refer to each picture is kept in the
+ * picture_ref table, which is not replicated. Replication can add and
+ * remove references without going through this class, so collect()
+ * recounts them after each sync run.
+ *
+ * Pictures are never deleted here, even when no local contact refers to
+ * them. A delete from the picture table would replicate to every peer,
+ * whose own contacts may still refer to the picture, or may refer to it
+ * again in changes not yet synced. Only the local reference count is
+ * dropped. Unreferenced pictures are collected by the server, which sees
+ * the references of all peers, and the deletes reach this device through
+ * replication like any other.
+ *
+ * All methods must be called inside a transaction.
+ */
+class PictureStore {
+    static final String PICTURE_TABLE = "picture";
+    static final String PICTURE_REF_TABLE = "picture_ref";
+
+    static final String KEY_HASH = "hash";
+    static final String KEY_REF_COUNT = "ref_count";
+
+    private static final String HASH_SELECTION = KEY_HASH + " = ?";
+
+    private PictureStore() {
+    }
+
+    static void createTables(IttiaDbDatabase db) {
+        db.execSQL(
+            "create table picture (" +
+            "  hash varchar(40) not null constraint picture_key primary key," +
+            "  picture blob not null," +
+            "  thumbnail blob" +
+            ")");
+        db.execSQL(
+            "create table picture_ref (" +
+            "  hash varchar(40) not null primary key," +
+            "  ref_count integer not null" +
+            ")");
+
+        // Replicate the picture table in and out. Reference counts are local.
+        IttiaDbDatabase.ReplicationTable pictureRep = db.getReplicationTable(PICTURE_TABLE);
+        pictureRep.replicationMode = IttiaDbDatabase.ReplicationMode.INOUT;
+        pictureRep.replicationIndex = "picture_key";
+        pictureRep.apply();
+    }
+
+    /** Returns the hex SHA-1 hash of a picture's encoding. */
+    static String hash(byte[] picture) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+
+        byte[] bytes = digest.digest(picture);
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Add a reference to a picture, storing the picture and its thumbnail if
+     * it is not stored yet. Returns the picture's hash, or null if picture
+     * is null.
+     */
+    static String acquire(IttiaDbDatabase db, byte[] picture, int thumbnailSize) {
+        if (picture == null) {
+            return null;
+        }
+
+        final String hash = hash(picture);
+        if (!exists(db, hash)) {
+            ContentValues values = new ContentValues();
+            values.put(KEY_HASH, hash);
+            values.put(PhoneBookDbAdapter.KEY_PICTURE, picture);
+            values.put(PhoneBookDbAdapter.KEY_THUMBNAIL,
+                    PhoneBookDbAdapter.createThumbnail(picture, thumbnailSize));
+            db.insert(PICTURE_TABLE, null, values);
+        }
+        setRefCount(db, hash, getRefCount(db, hash) + 1);
+        return hash;
+    }
+
+    /**
+     * Remove a reference to a picture, dropping its reference count if it
+     * was the last one. The picture itself is kept. Does nothing if hash is
+     * null.
+     */
+    static void release(IttiaDbDatabase db, String hash) {
+        if (hash == null) {
+            return;
+        }
+
+        final int refCount = getRefCount(db, hash) - 1;
+        if (refCount > 0) {
+            setRefCount(db, hash, refCount);
+        }
+        else {
+            deleteRefCount(db, hash);
+        }
+    }
+
+    /**
+     * Recount the references to every stored picture, dropping the counts
+     * of pictures that no local contact refers to. Each count is a range of
+     * the by_picture index, so the cost grows with the number of distinct
+     * pictures rather than the number of contacts. No picture is deleted.
+     * Returns the number of pictures without local references.
+     */
+    static int collect(IttiaDbDatabase db) {
+        int unreferenced = 0;
+        Cursor c = db.query(PICTURE_TABLE, new String[] { KEY_HASH },
+                null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                final String hash = c.getString(0);
+                final int refCount = countReferences(db, hash);
+                if (refCount > 0) {
+                    setRefCount(db, hash, refCount);
+                }
+                else {
+                    deleteRefCount(db, hash);
+                    ++unreferenced;
+                }
+            }
+        }
+        finally {
+            c.close();
+        }
+        return unreferenced;
+    }
+
+    private static boolean exists(IttiaDbDatabase db, String hash) {
+        Cursor c = db.query(PICTURE_TABLE, new String[] { KEY_HASH },
+                HASH_SELECTION, new String[] { hash }, null, null, null);
+        try {
+            return c.moveToFirst();
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    private static int getRefCount(IttiaDbDatabase db, String hash) {
+        Cursor c = db.query(PICTURE_REF_TABLE, new String[] { KEY_REF_COUNT },
+                HASH_SELECTION, new String[] { hash }, null, null, null);
+        try {
+            return c.moveToFirst() ? c.getInt(0) : 0;
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    private static void setRefCount(IttiaDbDatabase db, String hash, int refCount) {
+        ContentValues values = new ContentValues();
+        values.put(KEY_REF_COUNT, refCount);
+        if (db.update(PICTURE_REF_TABLE, values, HASH_SELECTION, new String[] { hash }) == 0) {
+            values.put(KEY_HASH, hash);
+            db.insert(PICTURE_REF_TABLE, null, values);
+        }
+    }
+
+    private static int countReferences(IttiaDbDatabase db, String hash) {
+        Cursor c = db.query(PhoneBookDbAdapter.CONTACT_TABLE, new String[] { "count(*)" },
+                PhoneBookDbAdapter.KEY_PICTURE_HASH + " = ?", new String[] { hash },
+                null, null, null);
+        try {
+            return c.moveToFirst() ? c.getInt(0) : 0;
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    private static void deleteRefCount(IttiaDbDatabase db, String hash) {
+        db.delete(PICTURE_REF_TABLE, HASH_SELECTION, new String[] { hash });
+    }
+}
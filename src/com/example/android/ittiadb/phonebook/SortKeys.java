@@ -0,0 +1,76 @@
+package com.example.android.ittiadb.phonebook;
+
+import java.text.Collator;
+import java.text.Normalizer;
+import java.util.Locale;
+
+/**
+ * Sort keys that order contact names for the current locale.
+ *
+ * A key is the name's collation key written as hexadecimal digits, so that
+ * comparing two keys as plain strings, in the database or with
+ * String.compareTo(), gives the locale's order of the names. Keys are
+ * truncated to MAX_LENGTH characters. Names whose keys agree that far are
+ * ordered by row ID.
+ *
+ * Names are also grouped into alphabet sections by their first letter. A
+ * letter with an accent that the locale sorts with its base letter, such
+ * as É in English, belongs to the base letter's section. One that sorts
+ * as a letter of its own, such as Ä in Swedish, has its own section. So
+ * each section is one contiguous run of the list.
+ */
+class SortKeys {
+    /** Longest key stored. */
+    static final int MAX_LENGTH = 400;
+
+    /** Section of names that do not start with a letter. */
+    static final String OTHER_SECTION = "#";
+
+    private static Locale sLocale;
+    private static Collator sCollator;
+    // Compares base letters only, ignoring accents and case.
+    private static Collator sPrimaryCollator;
+
+    private SortKeys() {
+    }
+
+    private static void updateLocale() {
+        final Locale locale = Locale.getDefault();
+        if (!locale.equals(sLocale)) {
+            sLocale = locale;
+            sCollator = Collator.getInstance(locale);
+            sPrimaryCollator = Collator.getInstance(locale);
+            sPrimaryCollator.setStrength(Collator.PRIMARY);
+        }
+    }
+
+    /** Returns the key of a name in the current locale. */
+    static synchronized String get(String name) {
+        updateLocale();
+        byte[] bytes = sCollator.getCollationKey(name).toByteArray();
+        final int length = Math.min(bytes.length, MAX_LENGTH / 2);
+        StringBuilder hex = new StringBuilder(length * 2);
+        for (int i = 0; i < length; ++i) {
+            hex.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(bytes[i] & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /** Returns the label of the alphabet section of a name. */
+    static synchronized String getSection(String name) {
+        if (name.isEmpty() || !Character.isLetter(name.codePointAt(0))) {
+            return OTHER_SECTION;
+        }
+        updateLocale();
+
+        String letter = name.substring(0, Character.charCount(name.codePointAt(0))).toUpperCase(sLocale);
+        String base = Normalizer.normalize(letter, Normalizer.Form.NFD).substring(0, 1);
+        return sPrimaryCollator.compare(letter, base) == 0 ? base : letter;
+    }
+
+    /** Returns the name of the locale that get() uses now. */
+    static String getLocaleName() {
+        return Locale.getDefault().toString();
+    }
+}
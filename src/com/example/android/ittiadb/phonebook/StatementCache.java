@@ -0,0 +1,84 @@
+package com.example.android.ittiadb.phonebook;
+
+import java.util.HashMap;
+
+import android.database.ittiadb.IttiaDbDatabase;
+import android.database.ittiadb.IttiaDbStatement;
+
+/**
+ * Compiled statements for one database connection, keyed by SQL text.
+ *
+ * Each statement is compiled the first time it is requested and reused
+ * after that, with values bound as parameters. A compiled statement holds
+ * its bindings, so callers must hold the cache's lock from get() until the
+ * statement has been executed.
+ */
+class StatementCache {
+    private final IttiaDbDatabase mDb;
+    private final HashMap<String, IttiaDbStatement> mStatements = new HashMap<String, IttiaDbStatement>();
+    private int mHits;
+    private int mMisses;
+
+    StatementCache(IttiaDbDatabase db) {
+        mDb = db;
+    }
+
+    /**
+     * Returns the compiled statement for sql with its bindings cleared.
+     */
+    IttiaDbStatement get(String sql) {
+        IttiaDbStatement statement = mStatements.get(sql);
+        if (statement == null) {
+            ++mMisses;
+            statement = mDb.compileStatement(sql);
+            mStatements.put(sql, statement);
+        }
+        else {
+            ++mHits;
+            statement.clearBindings();
+        }
+        return statement;
+    }
+
+    synchronized int getHits() {
+        return mHits;
+    }
+
+    synchronized int getMisses() {
+        return mMisses;
+    }
+
+    synchronized void close() {
+        for (IttiaDbStatement statement : mStatements.values()) {
+            statement.close();
+        }
+        mStatements.clear();
+    }
+
+    static void bindLong(IttiaDbStatement statement, int index, Long value) {
+        if (value == null) {
+            statement.bindNull(index);
+        }
+        else {
+            statement.bindLong(index, value);
+        }
+    }
+
+    static void bindString(IttiaDbStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        }
+        else {
+            statement.bindString(index, value);
+        }
+    }
+
+    static void bindBlob(IttiaDbStatement statement, int index, byte[] value) {
+        if (value == null) {
+            statement.bindNull(index);
+        }
+        else {
+            statement.bindBlob(index, value);
+        }
+    }
+}
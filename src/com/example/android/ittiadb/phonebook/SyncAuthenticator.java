@@ -8,19 +8,27 @@ import android.accounts.NetworkErrorException;
 import android.content.Context;
 import android.content.Intent;
 import android.database.ittiadb.IttiaDbDatabase;
-import android.database.ittiadb.IttiaDbException;
 import android.database.ittiadb.IttiaDbSyncAdapter;
 import android.os.Bundle;
 import android.text.TextUtils;
 
+/**
+ * Authenticator of sync accounts.
+ *
+ * AccountManager calls the methods of the authenticator on binder threads,
+ * not the main thread, so each call takes a lease on the shared database
+ * and waits for it to open there. The lease is released when the call
+ * returns, so the service that holds the authenticator does not keep the
+ * connection open.
+ */
 public class SyncAuthenticator extends AbstractAccountAuthenticator {
     public static final String AUTH_TOKEN_TYPE_REPLICATE = "ITTIA Replication Exchange";
 
     private final Context mContext;
-    private final IttiaDbDatabase mDatabase;
+    private final PhoneBookDatabase mDatabase;
     private final String mPeerUri;
 
-    public SyncAuthenticator(Context context, IttiaDbDatabase database, String peerUri) {
+    public SyncAuthenticator(Context context, PhoneBookDatabase database, String peerUri) {
         super(context);
         mContext = context;
         mDatabase = database;
@@ -42,7 +50,14 @@ public class SyncAuthenticator extends AbstractAccountAuthenticator {
 
         // Accounts should always use the same replication address as the
         // local database, if it has already been assigned.
-        intent.putExtra(LoginActivity.EXTRA_REPLICATION_ADDRESS, mDatabase.getReplicationAddress());
+        PhoneBookDatabase.Lease lease = mDatabase.acquire();
+        try {
+            intent.putExtra(LoginActivity.EXTRA_REPLICATION_ADDRESS,
+                    lease.get().getDatabase().getReplicationAddress());
+        }
+        finally {
+            lease.release();
+        }
 
         intent.putExtra(LoginActivity.EXTRA_PEER_URI, mPeerUri);
 
@@ -58,34 +73,27 @@ public class SyncAuthenticator extends AbstractAccountAuthenticator {
     {
         final AccountManager am = AccountManager.get(mContext);
 
-        String authToken = am.peekAuthToken(account, authTokenType);
-
-        // Request an auth token if the account does not have one, but does
-        // have the necessary credentials. This will happen if the account was
-        // created explicitly or if the previous token became invalid.
-        if (TextUtils.isEmpty(authToken)) {
-            final String password = am.getPassword(account);
-            String userName = am.getUserData(account, IttiaDbSyncAdapter.KEY_USER_NAME);
-            String uri = am.getUserData(account, IttiaDbSyncAdapter.KEY_PEER_URI);
-
-            if (password != null && userName != null && uri != null) {
-                try {
-                    Bundle result = IttiaDbSyncAdapter.requestAccess(uri, userName, password, mDatabase.getReplicationAddress());
-
-                    // Update authToken and the sync addresses.
-                    authToken = result.getString(AccountManager.KEY_AUTHTOKEN);
-                    final int replicationAddress = result.getInt(IttiaDbSyncAdapter.KEY_REPLICATION_ADDRESS, IttiaDbDatabase.REP_ADDRESS_NONE);
-                    final int peerAddress = result.getInt(IttiaDbSyncAdapter.KEY_PEER_ADDRESS, IttiaDbDatabase.REP_ADDRESS_NONE);
-
-                    am.setAuthToken(account, authTokenType, authToken);
-                    am.setUserData(account, IttiaDbSyncAdapter.KEY_REPLICATION_ADDRESS, Integer.toString(replicationAddress));
-                    am.setUserData(account, IttiaDbSyncAdapter.KEY_PEER_ADDRESS, Integer.toString(peerAddress));
-                }
-                catch (IttiaDbException ex) {
-                    // Leave authToken empty to prompt for credentials below.
-                }
-            }
+        PhoneBookDatabase.Lease lease = mDatabase.acquire();
+        try {
+            return getAuthToken(response, account, authTokenType, am, lease.get().getDatabase());
         }
+        finally {
+            lease.release();
+        }
+    }
+
+    private Bundle getAuthToken(AccountAuthenticatorResponse response,
+            Account account, String authTokenType, AccountManager am,
+            IttiaDbDatabase database)
+            throws NetworkErrorException
+    {
+        // Use the token stored in the account while it is fresh. Otherwise
+        // request one if the account has the necessary credentials. This
+        // will happen if the account was created explicitly or if the
+        // previous token expired or became invalid. If the peer cannot be
+        // reached, the stored token is used, or NetworkErrorException is
+        // thrown so that the sync is retried later.
+        String authToken = AuthTokenManager.get(mContext).getToken(account, authTokenType, database);
 
         if (!TextUtils.isEmpty(authToken)) {
             // Return the token stored in the account.
@@ -108,7 +116,7 @@ public class SyncAuthenticator extends AbstractAccountAuthenticator {
 
             // Accounts should always use the same replication address as the
             // local database. Ignore the address saved in the account.
-            intent.putExtra(LoginActivity.EXTRA_REPLICATION_ADDRESS, mDatabase.getReplicationAddress());
+            intent.putExtra(LoginActivity.EXTRA_REPLICATION_ADDRESS, database.getReplicationAddress());
 
             // Provide existing connection details.
             intent.putExtra(LoginActivity.EXTRA_USER_NAME, am.getUserData(account, IttiaDbSyncAdapter.KEY_USER_NAME));
@@ -10,8 +10,10 @@ public class SyncAuthenticatorService extends Service {
 
     @Override
     public void onCreate() {
-        // Create a new authenticator object
-        mAuthenticator = new PhoneBookDbAdapter(this).open().getSyncAuthenticator();
+        // Create a new authenticator object. It leases the shared database
+        // for each call, so that the connection is not held while the
+        // service is idle.
+        mAuthenticator = PhoneBookDbAdapter.getSyncAuthenticator(this);
     }
 
     @Override
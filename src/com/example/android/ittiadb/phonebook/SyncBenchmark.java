@@ -0,0 +1,550 @@
+package com.example.android.ittiadb.phonebook;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SyncResult;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.ittiadb.IttiaDbDatabase;
+import android.database.ittiadb.IttiaDbSyncAdapter;
+import android.net.TrafficStats;
+import android.os.Bundle;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Measures sync throughput against a peer.
+ *
+ * The benchmark needs an account, added with LoginActivity, for a peer
+ * used only for benchmarking, such as a server run on the development
+ * host. Since the emulator maps 10.0.2.2 to the host's loopback adapter,
+ * no network beyond the host is involved. To keep benchmark rows from
+ * reaching other peers, it refuses to run while other accounts exist.
+ *
+ * For each size, the benchmark imports that many contacts and syncs them
+ * (full), renames INCREMENTAL_PERCENT of them and syncs again
+ * (incremental), then deletes them all and syncs the deletions. Each
+ * step reports rows per second and bytes per row. Benchmark contacts are
+ * named with NAME_PREFIX and are removed even if a step fails.
+ *
+ * Start it with
+ * "adb shell dumpsys activity service SyncService benchmark ACCOUNT [SIZE...]"
+ * and print its results with the same command without arguments.
+ *
+ * The loopback mode, started with
+ * "adb shell dumpsys activity service SyncService loopback [SIZE...]",
+ * runs the same steps without a peer or an emulator. A second connection
+ * to the local database stands in for the peer: during each sync run, it
+ * writes the peer's inserts, renames or deletes directly to the contact
+ * table, in one transaction and without going through the adapter, as
+ * replication does. Like a peer, it gives inserted contacts replication
+ * keys and logs its renames and deletes in ContactChangeLog. The sync
+ * adapter then does all of its work after replication. The results
+ * therefore leave out the network and the replication protocol, and the
+ * bytes per row are only those of other traffic of the application. Like
+ * the sync mode, it refuses to run while any account exists, so that the
+ * rows it writes are not sent to a real peer.
+ *
+ * The import mode, started with
+ * "adb shell dumpsys activity service SyncService import [SIZE...]",
+ * compares PhoneBookDbAdapter.importContacts() with inserting the same
+ * contacts one at a time with createContact(), each in its own
+ * transaction. It reports rows per second for both and needs no account.
+ * The contacts of each step are deleted before the next one starts.
+ */
+class SyncBenchmark {
+    private static final String TAG = "SyncBenchmark";
+
+    /** Sizes benchmarked when none are given. */
+    static final int[] DEFAULT_SIZES = new int[] { 1000, 10000, 100000 };
+
+    /** Sizes of the import mode when none are given. */
+    static final int[] DEFAULT_IMPORT_SIZES = new int[] { 100, 1000, 10000 };
+
+    /** Share of the contacts changed for an incremental sync. */
+    static final int INCREMENTAL_PERCENT = 1;
+
+    /** Prefix of the names of benchmark contacts. */
+    static final String NAME_PREFIX = "~bench ";
+
+    private static final String NAME_SELECTION =
+            PhoneBookDbAdapter.KEY_NAME + " >= ? and " + PhoneBookDbAdapter.KEY_NAME + " < ?";
+    private static final String[] NAME_SELECTION_ARGS = new String[] { NAME_PREFIX, "~bench!" };
+
+    private static Thread sThread;
+    private static final ArrayList<String> sResults = new ArrayList<String>();
+
+    /** Name of the account that loopback runs are recorded under. */
+    static final String LOOPBACK_ACCOUNT_NAME = "loopback";
+
+    private static final int MODE_SYNC = 0;
+    private static final int MODE_LOOPBACK = 1;
+    private static final int MODE_IMPORT = 2;
+
+    private final Context mContext;
+    private final int mMode;
+    // Null in import mode.
+    private final Account mAccount;
+    private final int[] mSizes;
+
+    private SyncBenchmark(Context context, int mode, Account account, int[] sizes) {
+        mContext = context;
+        mMode = mode;
+        mAccount = account;
+        mSizes = sizes;
+    }
+
+    /**
+     * Start a benchmark from dump() arguments: an account name followed by
+     * the sizes to benchmark. Prints why it cannot start, if it cannot.
+     */
+    static void start(Context context, String[] args, PrintWriter pw) {
+        if (args.length < 2) {
+            pw.println("Usage: benchmark ACCOUNT [SIZE...]");
+            return;
+        }
+
+        Account[] accounts = AccountManager.get(context).getAccountsByType(IttiaPhoneBookActivity.ACCOUNT_TYPE);
+        if (accounts.length != 1 || !accounts[0].name.equals(args[1])) {
+            pw.println("The benchmark account must be the only account");
+            return;
+        }
+
+        int[] sizes = parseSizes(args, 2, DEFAULT_SIZES, pw);
+        if (sizes != null) {
+            start(new SyncBenchmark(context.getApplicationContext(), MODE_SYNC, accounts[0], sizes), pw);
+        }
+    }
+
+    /**
+     * Start a loopback benchmark from dump() arguments: the sizes to
+     * benchmark. Prints why it cannot start, if it cannot.
+     */
+    static void startLoopback(Context context, String[] args, PrintWriter pw) {
+        if (AccountManager.get(context).getAccountsByType(IttiaPhoneBookActivity.ACCOUNT_TYPE).length > 0) {
+            pw.println("The loopback benchmark cannot run while accounts exist");
+            return;
+        }
+
+        int[] sizes = parseSizes(args, 1, DEFAULT_SIZES, pw);
+        if (sizes != null) {
+            Account account = new Account(LOOPBACK_ACCOUNT_NAME, IttiaPhoneBookActivity.ACCOUNT_TYPE);
+            start(new SyncBenchmark(context.getApplicationContext(), MODE_LOOPBACK, account, sizes), pw);
+        }
+    }
+
+    /**
+     * Start an import comparison from dump() arguments: the sizes to
+     * benchmark. Prints why it cannot start, if it cannot.
+     */
+    static void startImport(Context context, String[] args, PrintWriter pw) {
+        int[] sizes = parseSizes(args, 1, DEFAULT_IMPORT_SIZES, pw);
+        if (sizes != null) {
+            start(new SyncBenchmark(context.getApplicationContext(), MODE_IMPORT, null, sizes), pw);
+        }
+    }
+
+    /**
+     * Returns the sizes given from args[first] on, or defaultSizes if there
+     * are none. Prints an error and returns null if a size is invalid.
+     */
+    private static int[] parseSizes(String[] args, int first, int[] defaultSizes, PrintWriter pw) {
+        if (args.length <= first) {
+            return defaultSizes;
+        }
+
+        int[] sizes = new int[args.length - first];
+        try {
+            for (int i = 0; i < sizes.length; ++i) {
+                sizes[i] = Integer.parseInt(args[i + first]);
+                if (sizes[i] < 1) {
+                    throw new NumberFormatException(args[i + first]);
+                }
+            }
+        }
+        catch (NumberFormatException ex) {
+            pw.println("Invalid size: " + ex.getMessage());
+            return null;
+        }
+        return sizes;
+    }
+
+    private static void start(final SyncBenchmark benchmark, PrintWriter pw) {
+        synchronized (sResults) {
+            if (sThread != null) {
+                pw.println("A benchmark is already running");
+                return;
+            }
+            sResults.clear();
+            sThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    try {
+                        switch (benchmark.mMode) {
+                            case MODE_SYNC:
+                                benchmark.run();
+                                break;
+                            case MODE_LOOPBACK:
+                                benchmark.runLoopback();
+                                break;
+                            case MODE_IMPORT:
+                                benchmark.runImport();
+                                break;
+                        }
+                    }
+                    finally {
+                        synchronized (sResults) {
+                            sThread = null;
+                        }
+                    }
+                }
+            }, TAG);
+            sThread.start();
+        }
+        pw.println("Benchmark started");
+    }
+
+    /** Print the results of the latest benchmark. */
+    static void dump(PrintWriter pw) {
+        synchronized (sResults) {
+            if (sThread == null && sResults.isEmpty()) {
+                return;
+            }
+            pw.println("Sync benchmark" + (sThread != null ? " (running)" : "") + ":");
+            for (String result : sResults) {
+                pw.println("  " + result);
+            }
+        }
+    }
+
+    private static void report(String result) {
+        Log.i(TAG, result);
+        synchronized (sResults) {
+            sResults.add(result);
+        }
+    }
+
+    private void run() {
+        // Keep the sync framework from syncing the account at the same time.
+        final boolean automatic = ContentResolver.getSyncAutomatically(mAccount, SyncContentProvider.AUTHORITY);
+        ContentResolver.setSyncAutomatically(mAccount, SyncContentProvider.AUTHORITY, false);
+        ContentResolver.cancelSync(mAccount, SyncContentProvider.AUTHORITY);
+
+        PhoneBookDbAdapter db = new PhoneBookDbAdapter(mContext).open();
+        ContentProviderClient provider = mContext.getContentResolver()
+                .acquireContentProviderClient(SyncContentProvider.AUTHORITY);
+        try {
+            IttiaDbSyncAdapter syncAdapter = db.getSyncAdapter();
+
+            // Start from a synced state without benchmark contacts.
+            deleteContacts(db);
+            sync(syncAdapter, provider);
+
+            for (int size : mSizes) {
+                try {
+                    insertContacts(db, size);
+                    report(size + " contacts, full: " + sync(syncAdapter, provider, size));
+
+                    final int changed = Math.max(1, size * INCREMENTAL_PERCENT / 100);
+                    renameContacts(db, changed);
+                    report(size + " contacts, incremental: " + sync(syncAdapter, provider, changed));
+
+                    deleteContacts(db);
+                    report(size + " contacts, delete: " + sync(syncAdapter, provider, size));
+                }
+                catch (RuntimeException ex) {
+                    Log.e(TAG, "Benchmark failed", ex);
+                    report(size + " contacts: failed, " + ex);
+                    deleteContacts(db);
+                    sync(syncAdapter, provider);
+                }
+            }
+        }
+        finally {
+            if (provider != null) {
+                provider.release();
+            }
+            db.close();
+            ContentResolver.setSyncAutomatically(mAccount, SyncContentProvider.AUTHORITY, automatic);
+        }
+    }
+
+    /**
+     * A sync adapter whose replication applies the changes of a stand-in
+     * peer, made on a second connection.
+     */
+    private static class LoopbackSyncAdapter extends PhoneBookSyncAdapter {
+        private final PhoneBookDbAdapter mPeer;
+        // Writes the changes of the next run, or null.
+        private PeerChanges mChanges;
+
+        LoopbackSyncAdapter(Context context, PhoneBookDbAdapter db, PhoneBookDbAdapter peer) {
+            super(context, db, db.getDatabase());
+            mPeer = peer;
+        }
+
+        @Override
+        protected void replicate(Account account, Bundle extras, String authority,
+                ContentProviderClient provider, SyncResult syncResult) {
+            if (mChanges == null) {
+                return;
+            }
+            IttiaDbDatabase db = mPeer.getDatabase();
+            db.beginTransaction();
+            try {
+                mChanges.write(db, syncResult);
+                db.setTransactionSuccessful();
+            }
+            finally {
+                db.endTransaction();
+                mChanges = null;
+            }
+        }
+    }
+
+    /** Changes of the stand-in peer for one sync run. */
+    private interface PeerChanges {
+        void write(IttiaDbDatabase db, SyncResult syncResult);
+    }
+
+    /** Returns the largest replication key of the contact table, or 0. */
+    private static long fetchMaxContactKey(IttiaDbDatabase db) {
+        Cursor c = db.query(PhoneBookDbAdapter.CONTACT_TABLE,
+                new String[] { "max(" + PhoneBookDbAdapter.KEY_CONTACT_ID + ")" }, null, null, null, null, null);
+        try {
+            return (c.moveToFirst() && !c.isNull(0)) ? c.getLong(0) : 0;
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    /** Returns the replication key of a contact that the stand-in peer inserted. */
+    private static long fetchContactKey(IttiaDbDatabase db, long rowId) {
+        Cursor c = db.query(PhoneBookDbAdapter.CONTACT_TABLE,
+                new String[] { PhoneBookDbAdapter.KEY_CONTACT_ID },
+                PhoneBookDbAdapter.KEY_ROWID + " = " + rowId, null, null, null, null);
+        try {
+            c.moveToFirst();
+            return c.getLong(0);
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    private void runLoopback() {
+        PhoneBookDbAdapter db = new PhoneBookDbAdapter(mContext).open();
+        PhoneBookDbAdapter peer = new PhoneBookDbAdapter(mContext).open();
+        try {
+            LoopbackSyncAdapter syncAdapter = new LoopbackSyncAdapter(mContext, db, peer);
+
+            // Start without benchmark contacts.
+            deleteContacts(db);
+
+            for (final int size : mSizes) {
+                try {
+                    syncAdapter.mChanges = new PeerChanges() {
+                        @Override
+                        public void write(IttiaDbDatabase peerDb, SyncResult syncResult) {
+                            final long firstKey = fetchMaxContactKey(peerDb) + 1;
+                            ContentValues values = new ContentValues();
+                            for (int i = 0; i < size; ++i) {
+                                values.put(PhoneBookDbAdapter.KEY_CONTACT_ID, firstKey + i);
+                                values.put(PhoneBookDbAdapter.KEY_NAME, NAME_PREFIX + i);
+                                peerDb.insert(PhoneBookDbAdapter.CONTACT_TABLE, null, values);
+                            }
+                            syncResult.stats.numInserts += size;
+                        }
+                    };
+                    report(size + " contacts, loopback full: " + sync(syncAdapter, null, size));
+
+                    final int changed = Math.max(1, size * INCREMENTAL_PERCENT / 100);
+                    final long[] ids = findContacts(db);
+                    syncAdapter.mChanges = new PeerChanges() {
+                        @Override
+                        public void write(IttiaDbDatabase peerDb, SyncResult syncResult) {
+                            final int step = Math.max(1, ids.length / changed);
+                            ContentValues values = new ContentValues();
+                            for (int i = 0; i < changed && i * step < ids.length; ++i) {
+                                final long contactId = fetchContactKey(peerDb, ids[i * step]);
+                                final String name = NAME_PREFIX + "renamed " + i;
+                                values.put(PhoneBookDbAdapter.KEY_NAME, name);
+                                peerDb.update(PhoneBookDbAdapter.CONTACT_TABLE, values,
+                                        PhoneBookDbAdapter.KEY_CONTACT_ID + " = " + contactId, null);
+                                ContactChangeLog.insert(peerDb, contactId, name);
+                                ++syncResult.stats.numUpdates;
+                            }
+                        }
+                    };
+                    report(size + " contacts, loopback incremental: " + sync(syncAdapter, null, changed));
+
+                    syncAdapter.mChanges = new PeerChanges() {
+                        @Override
+                        public void write(IttiaDbDatabase peerDb, SyncResult syncResult) {
+                            Cursor c = peerDb.query(PhoneBookDbAdapter.CONTACT_TABLE,
+                                    new String[] { PhoneBookDbAdapter.KEY_CONTACT_ID, PhoneBookDbAdapter.KEY_NAME },
+                                    NAME_SELECTION, NAME_SELECTION_ARGS, null, null, null);
+                            try {
+                                while (c.moveToNext()) {
+                                    ContactChangeLog.insert(peerDb, c.getLong(0), c.getString(1));
+                                }
+                            }
+                            finally {
+                                c.close();
+                            }
+                            syncResult.stats.numDeletes += peerDb.delete(PhoneBookDbAdapter.CONTACT_TABLE,
+                                    NAME_SELECTION, NAME_SELECTION_ARGS);
+                        }
+                    };
+                    report(size + " contacts, loopback delete: " + sync(syncAdapter, null, size));
+                }
+                catch (RuntimeException ex) {
+                    Log.e(TAG, "Benchmark failed", ex);
+                    report(size + " contacts: failed, " + ex);
+                    deleteContacts(db);
+                }
+            }
+        }
+        finally {
+            peer.close();
+            db.close();
+        }
+    }
+
+    private void runImport() {
+        PhoneBookDbAdapter db = new PhoneBookDbAdapter(mContext).open();
+        try {
+            deleteContacts(db);
+            for (int size : mSizes) {
+                try {
+                    long startTime = SystemClock.elapsedRealtime();
+                    insertContacts(db, size);
+                    final long batched = Math.max(1, SystemClock.elapsedRealtime() - startTime);
+                    deleteContacts(db);
+
+                    startTime = SystemClock.elapsedRealtime();
+                    for (int i = 0; i < size; ++i) {
+                        db.createContact(NAME_PREFIX + i, null, null);
+                    }
+                    final long perRow = Math.max(1, SystemClock.elapsedRealtime() - startTime);
+                    deleteContacts(db);
+
+                    report(size + " contacts, import: " + size * 1000L / batched + " rows/s in " +
+                            batched + " ms, per row: " + size * 1000L / perRow + " rows/s in " +
+                            perRow + " ms, speedup " + (perRow * 10 / batched) / 10.0 + "x");
+                }
+                catch (RuntimeException ex) {
+                    Log.e(TAG, "Benchmark failed", ex);
+                    report(size + " contacts: failed, " + ex);
+                    deleteContacts(db);
+                }
+            }
+        }
+        finally {
+            db.close();
+        }
+    }
+
+    private SyncResult sync(IttiaDbSyncAdapter syncAdapter, ContentProviderClient provider) {
+        SyncResult syncResult = new SyncResult();
+        syncAdapter.onPerformSync(mAccount, new Bundle(), SyncContentProvider.AUTHORITY, provider, syncResult);
+        return syncResult;
+    }
+
+    /** Sync the account and describe the throughput for a number of rows. */
+    private String sync(IttiaDbSyncAdapter syncAdapter, ContentProviderClient provider, int rows) {
+        final int uid = Process.myUid();
+        final long rxBefore = TrafficStats.getUidRxBytes(uid);
+        final long txBefore = TrafficStats.getUidTxBytes(uid);
+        final long startTime = SystemClock.elapsedRealtime();
+
+        SyncResult syncResult = sync(syncAdapter, provider);
+
+        final long elapsed = Math.max(1, SystemClock.elapsedRealtime() - startTime);
+        final long bytes = TrafficStats.getUidRxBytes(uid) - rxBefore + TrafficStats.getUidTxBytes(uid) - txBefore;
+        String result = rows + " rows in " + elapsed + " ms, " +
+                rows * 1000L / elapsed + " rows/s, " +
+                (txBefore == TrafficStats.UNSUPPORTED ? "unknown" : Long.toString(bytes / rows)) + " bytes/row";
+        if (syncResult.hasError()) {
+            result += ", failed: " + syncResult;
+        }
+        return result;
+    }
+
+    private static void insertContacts(PhoneBookDbAdapter db, final int count) {
+        db.importContacts(new Iterator<PhoneBookDbAdapter.Contact>() {
+            private int mNext;
+
+            @Override
+            public boolean hasNext() {
+                return mNext < count;
+            }
+
+            @Override
+            public PhoneBookDbAdapter.Contact next() {
+                return new PhoneBookDbAdapter.Contact(NAME_PREFIX + mNext++, null, null);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        }, PhoneBookDbAdapter.DEFAULT_IMPORT_BATCH_SIZE, null);
+    }
+
+    private static void renameContacts(PhoneBookDbAdapter db, int count) {
+        long[] ids = findContacts(db);
+        db.beginGroup();
+        try {
+            // Spread the changes over the table.
+            final int step = Math.max(1, ids.length / count);
+            for (int i = 0; i < count && i * step < ids.length; ++i) {
+                db.updateContact(ids[i * step], PhoneBookDbAdapter.FIELD_NAME,
+                        NAME_PREFIX + "renamed " + i, null, null);
+            }
+            db.setGroupSuccessful();
+        }
+        finally {
+            db.endGroup();
+        }
+    }
+
+    private static void deleteContacts(PhoneBookDbAdapter db) {
+        long[] ids = findContacts(db);
+        db.beginGroup();
+        try {
+            for (long rowId : ids) {
+                db.deleteContact(rowId);
+            }
+            db.setGroupSuccessful();
+        }
+        finally {
+            db.endGroup();
+        }
+    }
+
+    private static long[] findContacts(PhoneBookDbAdapter db) {
+        Cursor c = db.queryContacts(new String[] { PhoneBookDbAdapter.KEY_ROWID },
+                NAME_SELECTION, NAME_SELECTION_ARGS, null, null);
+        try {
+            long[] ids = new long[c.getCount()];
+            for (int i = 0; c.moveToNext() && i < ids.length; ++i) {
+                ids[i] = c.getLong(0);
+            }
+            return ids;
+        }
+        finally {
+            c.close();
+        }
+    }
+}
@@ -1,14 +1,38 @@
 package com.example.android.ittiadb.phonebook;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.CursorWrapper;
 import android.net.Uri;
 
-/*
- * Define an implementation of ContentProvider that stubs out
- * all methods. A content provider is required to use a sync adapter,
- * but is otherwise unnecessary for this application.
+/**
+ * Provides the contact table to other components and apps through content
+ * URIs. A content provider is also required to use a sync adapter. Other
+ * apps need the READ_PERMISSION to query and the WRITE_PERMISSION to
+ * write, as declared in the manifest.
+ *
+ * Queries read only the columns requested, so the picture table is joined
+ * only when a picture column is asked for. A query can be paged by key
+ * instead of by offset: pass the name and _id of the last row already read
+ * as the after_name and after_id parameters, and the page size as limit.
+ * Each page then costs the same no matter how far into the list it is.
+ *
+ * Each call uses a lease of the shared connection of PhoneBookDatabase. A
+ * query's lease is held until its cursor is closed.
+ *
+ * All writes go through PhoneBookDbAdapter, so they keep picture reference
+ * counts and are reported to ContactChangeFeed. Each call, including
+ * bulkInsert() and applyBatch(), writes in one transaction and notifies
+ * observers of CONTACTS_URI once rather than once per row.
  */
 public class SyncContentProvider extends ContentProvider {
     /** The authority for the sync adapter's content provider. This should
@@ -18,14 +42,62 @@ public class SyncContentProvider extends ContentProvider {
     /** The base URI for all content under the authority of this provider. */
     public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
 
+    /** The URI of the contact table. Append a row ID for a single contact. */
+    public static final Uri CONTACTS_URI = Uri.withAppendedPath(CONTENT_URI, "contacts");
+
+    public static final String CONTENT_TYPE =
+            "vnd.android.cursor.dir/vnd.com.example.android.ittiadb.phonebook.contact";
+    public static final String CONTENT_ITEM_TYPE =
+            "vnd.android.cursor.item/vnd.com.example.android.ittiadb.phonebook.contact";
+
+    /** Permissions that other apps need to read and write contacts. */
+    public static final String READ_PERMISSION =
+            "com.example.android.ittiadb.phonebook.permission.READ_CONTACTS";
+    public static final String WRITE_PERMISSION =
+            "com.example.android.ittiadb.phonebook.permission.WRITE_CONTACTS";
+
+    /** Query parameters for paging by key. */
+    public static final String PARAM_AFTER_NAME = "after_name";
+    public static final String PARAM_AFTER_ID = "after_id";
+    public static final String PARAM_LIMIT = "limit";
+
+    private static final String[] DEFAULT_PROJECTION = new String[] {
+        PhoneBookDbAdapter.KEY_ROWID, PhoneBookDbAdapter.KEY_NAME, PhoneBookDbAdapter.KEY_RING_ID };
+
+    private static final int CONTACTS = 1;
+    private static final int CONTACT_ID = 2;
+
+    private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+    static {
+        sUriMatcher.addURI(AUTHORITY, "contacts", CONTACTS);
+        sUriMatcher.addURI(AUTHORITY, "contacts/#", CONTACT_ID);
+    }
+
+    // Set while applyBatch() runs, so that its operations do not notify
+    // observers one at a time.
+    private boolean mInBatch;
+
     @Override
     public boolean onCreate() {
+        // The database is opened on first use, not while the application
+        // starts.
         return true;
     }
 
+    private PhoneBookDatabase.Lease acquire() {
+        return PhoneBookDatabase.get(getContext()).acquire();
+    }
+
     @Override
     public String getType(Uri uri) {
-        return new String();
+        switch (sUriMatcher.match(uri)) {
+            case CONTACTS:
+                return CONTENT_TYPE;
+            case CONTACT_ID:
+                return CONTENT_ITEM_TYPE;
+            default:
+                return new String();
+        }
     }
 
     @Override
@@ -35,25 +107,271 @@ public class SyncContentProvider extends ContentProvider {
             String selection,
             String[] selectionArgs,
             String sortOrder) {
-        return null;
+        final int match = sUriMatcher.match(uri);
+        if (match == UriMatcher.NO_MATCH) {
+            return null;
+        }
+
+        if (projection == null) {
+            projection = DEFAULT_PROJECTION;
+        }
+        if (match == CONTACT_ID) {
+            selection = whereWithId(uri, selection);
+        }
+
+        final String limit = uri.getQueryParameter(PARAM_LIMIT);
+        final String afterName = uri.getQueryParameter(PARAM_AFTER_NAME);
+        // Pages are always in key order.
+        if ((limit != null || afterName != null) && sortOrder != null) {
+            throw new IllegalArgumentException("sortOrder cannot be used with paging");
+        }
+
+        final PhoneBookDatabase.Lease lease = acquire();
+        Cursor c = null;
+        try {
+            if (limit != null || afterName != null) {
+                final String afterId = uri.getQueryParameter(PARAM_AFTER_ID);
+                c = lease.get().queryContactsAfter(projection, selection, selectionArgs,
+                        afterName, afterId != null ? Long.parseLong(afterId) : -1,
+                        limit != null ? Integer.parseInt(limit) : Integer.MAX_VALUE);
+            }
+            else {
+                c = lease.get().queryContacts(projection, selection, selectionArgs, sortOrder, null);
+            }
+        }
+        finally {
+            if (c == null) {
+                lease.release();
+            }
+        }
+
+        c = new CursorWrapper(c) {
+            @Override
+            public void close() {
+                super.close();
+                lease.release();
+            }
+        };
+        c.setNotificationUri(getContext().getContentResolver(), CONTACTS_URI);
+        return c;
+    }
+
+    @Override
+    public synchronized Uri insert(Uri uri, ContentValues values) {
+        if (sUriMatcher.match(uri) != CONTACTS) {
+            return null;
+        }
+
+        long rowId;
+        PhoneBookDatabase.Lease lease = acquire();
+        try {
+            rowId = lease.get().createContact(getName(values),
+                    values.getAsLong(PhoneBookDbAdapter.KEY_RING_ID),
+                    values.getAsByteArray(PhoneBookDbAdapter.KEY_PICTURE));
+        }
+        finally {
+            lease.release();
+        }
+        if (rowId <= 0) {
+            return null;
+        }
+        notifyChange();
+        return ContentUris.withAppendedId(CONTACTS_URI, rowId);
     }
 
     @Override
-    public Uri insert(Uri uri, ContentValues values) {
-        return null;
+    public synchronized int bulkInsert(Uri uri, ContentValues[] values) {
+        if (sUriMatcher.match(uri) != CONTACTS) {
+            return 0;
+        }
+
+        final ContentValues[] rows = values;
+        int inserted;
+        PhoneBookDatabase.Lease lease = acquire();
+        try {
+            inserted = lease.get().importContacts(new Iterator<PhoneBookDbAdapter.Contact>() {
+                private int mNext;
+
+                @Override
+                public boolean hasNext() {
+                    return mNext < rows.length;
+                }
+
+                @Override
+                public PhoneBookDbAdapter.Contact next() {
+                    ContentValues row = rows[mNext++];
+                    return new PhoneBookDbAdapter.Contact(getName(row),
+                            row.getAsLong(PhoneBookDbAdapter.KEY_RING_ID),
+                            row.getAsByteArray(PhoneBookDbAdapter.KEY_PICTURE));
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            }, Math.max(1, rows.length), null);
+        }
+        finally {
+            lease.release();
+        }
+
+        if (inserted > 0) {
+            notifyChange();
+        }
+        return inserted;
     }
 
     @Override
-    public int delete(Uri uri, String selection, String[] selectionArgs) {
-        return 0;
+    public synchronized int delete(Uri uri, String selection, String[] selectionArgs) {
+        final int match = sUriMatcher.match(uri);
+        if (match == UriMatcher.NO_MATCH) {
+            return 0;
+        }
+        if (match == CONTACT_ID) {
+            selection = whereWithId(uri, selection);
+        }
+
+        int deleted = 0;
+        PhoneBookDatabase.Lease lease = acquire();
+        try {
+            PhoneBookDbAdapter db = lease.get();
+            db.beginGroup();
+            try {
+                for (long rowId : findIds(db, selection, selectionArgs)) {
+                    if (db.deleteContact(rowId)) {
+                        ++deleted;
+                    }
+                }
+                db.setGroupSuccessful();
+            }
+            finally {
+                db.endGroup();
+            }
+        }
+        finally {
+            lease.release();
+        }
+        if (deleted > 0) {
+            notifyChange();
+        }
+        return deleted;
     }
 
     @Override
-    public int update(
+    public synchronized int update(
             Uri uri,
             ContentValues values,
             String selection,
             String[] selectionArgs) {
-        return 0;
+        final int match = sUriMatcher.match(uri);
+        if (match == UriMatcher.NO_MATCH) {
+            return 0;
+        }
+        if (match == CONTACT_ID) {
+            selection = whereWithId(uri, selection);
+        }
+
+        // Write only the columns given.
+        int fields = 0;
+        if (values.containsKey(PhoneBookDbAdapter.KEY_NAME)) {
+            fields |= PhoneBookDbAdapter.FIELD_NAME;
+        }
+        if (values.containsKey(PhoneBookDbAdapter.KEY_RING_ID)) {
+            fields |= PhoneBookDbAdapter.FIELD_RING_ID;
+        }
+        if (values.containsKey(PhoneBookDbAdapter.KEY_PICTURE)) {
+            fields |= PhoneBookDbAdapter.FIELD_PICTURE;
+        }
+        if (fields == 0) {
+            return 0;
+        }
+
+        int updated = 0;
+        PhoneBookDatabase.Lease lease = acquire();
+        try {
+            PhoneBookDbAdapter db = lease.get();
+            db.beginGroup();
+            try {
+                for (long rowId : findIds(db, selection, selectionArgs)) {
+                    if (db.updateContact(rowId, fields, getName(values),
+                            values.getAsLong(PhoneBookDbAdapter.KEY_RING_ID),
+                            values.getAsByteArray(PhoneBookDbAdapter.KEY_PICTURE))) {
+                        ++updated;
+                    }
+                }
+                db.setGroupSuccessful();
+            }
+            finally {
+                db.endGroup();
+            }
+        }
+        finally {
+            lease.release();
+        }
+        if (updated > 0) {
+            notifyChange();
+        }
+        return updated;
+    }
+
+    /**
+     * Apply all operations in one transaction. If any operation fails, none
+     * of them are applied.
+     */
+    @Override
+    public synchronized ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        ContentProviderResult[] results;
+        PhoneBookDatabase.Lease lease = acquire();
+        try {
+            PhoneBookDbAdapter db = lease.get();
+            mInBatch = true;
+            db.beginGroup();
+            try {
+                results = super.applyBatch(operations);
+                db.setGroupSuccessful();
+            }
+            finally {
+                db.endGroup();
+                mInBatch = false;
+            }
+        }
+        finally {
+            lease.release();
+        }
+
+        notifyChange();
+        return results;
+    }
+
+    private void notifyChange() {
+        if (!mInBatch) {
+            getContext().getContentResolver().notifyChange(CONTACTS_URI, null, false);
+        }
+    }
+
+    private String getName(ContentValues values) {
+        String name = values.getAsString(PhoneBookDbAdapter.KEY_NAME);
+        return name != null ? name : getContext().getString(R.string.default_contact_name);
+    }
+
+    private static String whereWithId(Uri uri, String selection) {
+        String where = PhoneBookDbAdapter.KEY_ROWID + " = " + ContentUris.parseId(uri);
+        return selection != null ? where + " and (" + selection + ")" : where;
+    }
+
+    private static long[] findIds(PhoneBookDbAdapter db, String selection, String[] selectionArgs) {
+        Cursor c = db.queryContacts(new String[] { PhoneBookDbAdapter.KEY_ROWID },
+                selection, selectionArgs, null, null);
+        try {
+            long[] ids = new long[c.getCount()];
+            for (int i = 0; c.moveToNext() && i < ids.length; ++i) {
+                ids[i] = c.getLong(0);
+            }
+            return ids;
+        }
+        finally {
+            c.close();
+        }
     }
 }
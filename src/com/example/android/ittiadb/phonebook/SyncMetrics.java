@@ -0,0 +1,188 @@
+package com.example.android.ittiadb.phonebook;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import android.accounts.Account;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.ittiadb.IttiaDbDatabase;
+
+/**
+ * Timing and volume metrics of sync runs.
+ *
+ * PhoneBookSyncAdapter records one Run per sync in the sync_run table,
+ * which is local to the device and is not replicated. The table works as
+ * a ring buffer: only the latest MAX_RUNS runs are kept.
+ *
+ * Time spent requesting access from the peer is measured by
+ * SyncAuthenticator, which runs on another thread, and is charged to the
+ * run in progress for the same account.
+ *
+ * dump() prints the 50th, 95th and 99th percentile of each metric, for all
+ * accounts together and for each account. It is reached through
+ * "adb shell dumpsys activity service SyncService".
+ */
+class SyncMetrics {
+    static final String SYNC_RUN_TABLE = "sync_run";
+
+    /** Number of runs kept. */
+    static final int MAX_RUNS = 500;
+
+    /** Metrics of one sync run. */
+    static class Run {
+        String account;
+        long startTime;
+        long durationMillis;
+        long accessMillis;
+        long replicationMillis;
+        long rowsInserted;
+        long rowsDeleted;
+        long rxBytes;
+        long txBytes;
+        boolean failed;
+    }
+
+    // Columns that dump() summarizes.
+    private static final String[] METRIC_COLUMNS = new String[] {
+        "duration_ms", "access_ms", "replication_ms",
+        "rows_inserted", "rows_deleted", "rx_bytes", "tx_bytes" };
+
+    // Access time of runs in progress, by account.
+    private static final HashMap<Account, Long> sAccessMillis = new HashMap<Account, Long>();
+
+    private SyncMetrics() {
+    }
+
+    static void createTable(IttiaDbDatabase db) {
+        db.execSQL(
+            "create table sync_run (" +
+            "  _id unsigned bigint generated by default as identity primary key," +
+            "  account nvarchar(100) not null," +
+            "  start_time bigint not null," +
+            "  duration_ms bigint not null," +
+            "  access_ms bigint not null," +
+            "  replication_ms bigint not null," +
+            "  rows_inserted bigint not null," +
+            "  rows_deleted bigint not null," +
+            "  rx_bytes bigint not null," +
+            "  tx_bytes bigint not null," +
+            "  failed integer not null" +
+            ")");
+    }
+
+    /** Start charging access time for an account to a new run. */
+    static void beginRun(Account account) {
+        synchronized (sAccessMillis) {
+            sAccessMillis.put(account, 0L);
+        }
+    }
+
+    /** Charge time spent requesting access to the account's current run. */
+    static void addAccessTime(Account account, long millis) {
+        synchronized (sAccessMillis) {
+            Long total = sAccessMillis.get(account);
+            if (total != null) {
+                sAccessMillis.put(account, total + millis);
+            }
+        }
+    }
+
+    /** Returns the access time charged to the account's run and ends it. */
+    static long endRun(Account account) {
+        synchronized (sAccessMillis) {
+            Long total = sAccessMillis.remove(account);
+            return total != null ? total : 0;
+        }
+    }
+
+    /** Store a run and drop the oldest runs beyond MAX_RUNS. */
+    static void insert(IttiaDbDatabase db, Run run) {
+        ContentValues values = new ContentValues();
+        values.put("account", run.account);
+        values.put("start_time", run.startTime);
+        values.put("duration_ms", run.durationMillis);
+        values.put("access_ms", run.accessMillis);
+        values.put("replication_ms", run.replicationMillis);
+        values.put("rows_inserted", run.rowsInserted);
+        values.put("rows_deleted", run.rowsDeleted);
+        values.put("rx_bytes", run.rxBytes);
+        values.put("tx_bytes", run.txBytes);
+        values.put("failed", run.failed ? 1 : 0);
+
+        db.beginTransaction();
+        try {
+            final long rowId = db.insert(SYNC_RUN_TABLE, null, values);
+            if (rowId > MAX_RUNS) {
+                db.delete(SYNC_RUN_TABLE, "_id <= ?", new String[] { Long.toString(rowId - MAX_RUNS) });
+            }
+            db.setTransactionSuccessful();
+        }
+        finally {
+            db.endTransaction();
+        }
+    }
+
+    /** Print percentiles of the stored runs. */
+    static void dump(IttiaDbDatabase db, PrintWriter pw) {
+        String[] columns = new String[METRIC_COLUMNS.length + 2];
+        columns[0] = "account";
+        columns[1] = "failed";
+        System.arraycopy(METRIC_COLUMNS, 0, columns, 2, METRIC_COLUMNS.length);
+
+        Cursor c = db.query(SYNC_RUN_TABLE, columns, null, null, null, null, "account");
+        try {
+            final int count = c.getCount();
+            long[][] all = new long[METRIC_COLUMNS.length][count];
+            int failed = 0;
+
+            pw.println("Sync runs: " + count + " (latest " + MAX_RUNS + " kept)");
+
+            // Rows are ordered by account, so each account's runs are one
+            // contiguous range.
+            int accountStart = 0;
+            String account = null;
+            for (int i = 0; c.moveToNext(); ++i) {
+                if (account != null && !account.equals(c.getString(0))) {
+                    dumpPercentiles(pw, "  " + account, all, accountStart, i);
+                    accountStart = i;
+                }
+                account = c.getString(0);
+                failed += c.getInt(1);
+                for (int m = 0; m < METRIC_COLUMNS.length; ++m) {
+                    all[m][i] = c.getLong(m + 2);
+                }
+            }
+            if (account != null) {
+                dumpPercentiles(pw, "  " + account, all, accountStart, count);
+            }
+            dumpPercentiles(pw, "All accounts (" + failed + " failed)", all, 0, count);
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    private static void dumpPercentiles(PrintWriter pw, String label, long[][] values, int from, int to) {
+        pw.println(label + ": " + (to - from) + " runs");
+        if (to == from) {
+            return;
+        }
+        for (int m = 0; m < METRIC_COLUMNS.length; ++m) {
+            long[] sorted = Arrays.copyOfRange(values[m], from, to);
+            Arrays.sort(sorted);
+            pw.println("    " + METRIC_COLUMNS[m] +
+                    ": p50=" + percentile(sorted, 50) +
+                    " p95=" + percentile(sorted, 95) +
+                    " p99=" + percentile(sorted, 99) +
+                    " max=" + sorted[sorted.length - 1]);
+        }
+    }
+
+    /** Nearest-rank percentile of sorted values. */
+    private static long percentile(long[] sorted, int p) {
+        int rank = (p * sorted.length + 99) / 100;
+        return sorted[Math.max(0, rank - 1)];
+    }
+}
@@ -0,0 +1,138 @@
+package com.example.android.ittiadb.phonebook;
+
+import java.util.HashMap;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Schedules periodic syncs for each account, adapting their interval to how
+ * busy the phone book is.
+ *
+ * After each sync run, the interval of the account is halved if the run
+ * pulled rows or contacts were edited locally since the previous run, and
+ * doubled otherwise, within MIN_INTERVAL_SECONDS and MAX_INTERVAL_SECONDS.
+ * A busy phone book converges quickly, while a quiet one syncs rarely. The
+ * current interval of each account is kept in shared preferences.
+ *
+ * Local edits also request a sync of all accounts once no further edit has
+ * been made for DEBOUNCE_MILLIS, so that a burst of edits is sent in one
+ * run.
+ */
+public class SyncScheduler implements ContactChangeFeed.Listener {
+    /** Shortest periodic sync interval. */
+    public static final long MIN_INTERVAL_SECONDS = 15 * 60;
+
+    /** Longest periodic sync interval. */
+    public static final long MAX_INTERVAL_SECONDS = 24 * 60 * 60;
+
+    /** Interval of accounts that have not synced yet. */
+    public static final long DEFAULT_INTERVAL_SECONDS = 60 * 60;
+
+    /** Time after the last local edit before a sync is requested. */
+    public static final long DEBOUNCE_MILLIS = 30 * 1000;
+
+    private static final String PREFERENCES_NAME = "sync_scheduler";
+    private static final String KEY_INTERVAL_PREFIX = "interval_";
+
+    private static SyncScheduler sInstance;
+
+    private final Context mContext;
+    private final SharedPreferences mPreferences;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Number of local edits made in this process, and its value when each
+    // account last finished a sync run.
+    private long mLocalEdits;
+    private final HashMap<String, Long> mLocalEditsSynced = new HashMap<String, Long>();
+
+    private final Runnable mDebouncedSync = new Runnable() {
+        @Override
+        public void run() {
+            for (Account account : getAccounts()) {
+                ContentResolver.requestSync(account, SyncContentProvider.AUTHORITY, new Bundle());
+            }
+        }
+    };
+
+    /**
+     * Returns the scheduler, creating it and scheduling all accounts on
+     * first use.
+     */
+    public static synchronized SyncScheduler get(Context context) {
+        if (sInstance == null) {
+            sInstance = new SyncScheduler(context.getApplicationContext());
+            ContactChangeFeed.get().registerListener(sInstance);
+            sInstance.scheduleAll();
+        }
+        return sInstance;
+    }
+
+    private SyncScheduler(Context context) {
+        mContext = context;
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Enable automatic sync and register the periodic sync of every
+     * account, including accounts added since the last call.
+     */
+    public synchronized void scheduleAll() {
+        for (Account account : getAccounts()) {
+            ContentResolver.setSyncAutomatically(account, SyncContentProvider.AUTHORITY, true);
+            ContentResolver.addPeriodicSync(account, SyncContentProvider.AUTHORITY,
+                    new Bundle(), getInterval(account));
+        }
+    }
+
+    /**
+     * Adjust the interval of an account after a sync run. Called on the
+     * sync thread.
+     */
+    public synchronized void onSyncFinished(Account account, long rowsPulled) {
+        final long interval = getInterval(account);
+        final Long editsSynced = mLocalEditsSynced.put(account.name, mLocalEdits);
+        final boolean edited = editsSynced != null ? editsSynced != mLocalEdits : mLocalEdits > 0;
+        long next;
+        if (rowsPulled > 0 || edited) {
+            next = Math.max(MIN_INTERVAL_SECONDS, interval / 2);
+        }
+        else {
+            next = Math.min(MAX_INTERVAL_SECONDS, interval * 2);
+        }
+
+        if (next != interval) {
+            mPreferences.edit().putLong(KEY_INTERVAL_PREFIX + account.name, next).apply();
+            // Adding a periodic sync with the same extras replaces its period.
+            ContentResolver.addPeriodicSync(account, SyncContentProvider.AUTHORITY,
+                    new Bundle(), next);
+        }
+    }
+
+    @Override
+    public void onContactsChanged(ContactChangeFeed.Changes changes) {
+        if (changes.fromSync) {
+            return;
+        }
+
+        synchronized (this) {
+            mLocalEdits += changes.inserted.size() + changes.updated.size() + changes.deleted.size();
+        }
+        mHandler.removeCallbacks(mDebouncedSync);
+        mHandler.postDelayed(mDebouncedSync, DEBOUNCE_MILLIS);
+    }
+
+    private long getInterval(Account account) {
+        return mPreferences.getLong(KEY_INTERVAL_PREFIX + account.name, DEFAULT_INTERVAL_SECONDS);
+    }
+
+    private Account[] getAccounts() {
+        return AccountManager.get(mContext).getAccountsByType(IttiaPhoneBookActivity.ACCOUNT_TYPE);
+    }
+}
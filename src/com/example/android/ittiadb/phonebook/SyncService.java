@@ -1,13 +1,15 @@
 package com.example.android.ittiadb.phonebook;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 import android.app.Service;
 import android.content.Intent;
-import android.database.ittiadb.IttiaDbSyncAdapter;
 import android.os.IBinder;
 
 public class SyncService extends Service {
 
-    private static IttiaDbSyncAdapter sSyncAdapter = null;
+    private static ParallelSyncAdapter sSyncAdapter = null;
     // Object to use as a thread-safe lock
     private static final Object sSyncAdapterLock = new Object();
 
@@ -19,14 +21,14 @@ public class SyncService extends Service {
         /*
          * Create the sync adapter as a singleton.
          * Set the sync adapter as syncable
-         * Disallow parallel syncs
+         * Allow parallel syncs of different accounts
          */
         synchronized (sSyncAdapterLock) {
             if (sSyncAdapter == null) {
-                // Open a connection to the application's database.
-                // This service must run in the same process as the main
-                // activity so that open() does not fail.
-                sSyncAdapter = new PhoneBookDbAdapter(this).open().getSyncAdapter();
+                // Each account's sync opens its own connection to the
+                // application's database. This service must run in the same
+                // process as the main activity so that open() does not fail.
+                sSyncAdapter = new ParallelSyncAdapter(getApplicationContext());
             }
         }
     }
@@ -36,4 +38,35 @@ public class SyncService extends Service {
         return sSyncAdapter.getSyncAdapterBinder();
     }
 
+    /*
+     * Print sync run metrics, for
+     * "adb shell dumpsys activity service SyncService".
+     * The "benchmark", "loopback" and "import" arguments start a
+     * SyncBenchmark instead.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (args.length > 0 && args[0].equals("benchmark")) {
+            SyncBenchmark.start(this, args, writer);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("loopback")) {
+            SyncBenchmark.startLoopback(this, args, writer);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("import")) {
+            SyncBenchmark.startImport(this, args, writer);
+            return;
+        }
+
+        PhoneBookDatabase.Lease database = PhoneBookDatabase.get(this).acquire();
+        try {
+            database.get().dumpSyncMetrics(writer);
+        }
+        finally {
+            database.release();
+        }
+        SyncBenchmark.dump(writer);
+    }
+
 }